@@ -0,0 +1,185 @@
+import java.util.*;
+
+/** Bounded cache of (key,value) pairs for DhtServer.
+ *
+ *  The cache holds at most capacity pairs and drops a pair ttl
+ *  milliseconds after it was put, so a value changed by a put that did
+ *  not pass through this server is served for ttl at most (0 keeps pairs
+ *  until they are evicted). A full cache evicts the least recently used
+ *  pair. With the "tinylfu" policy a new pair only gets in if its key
+ *  was asked for more often than the key of the pair it would evict; how
+ *  often is estimated by a count-min sketch of small counters that are
+ *  halved every SAMPLE_PER_ENTRY * capacity gets, so old popularity
+ *  fades. With the "lru" policy every new pair gets in.
+ *
+ *  All methods are synchronized, the cache is used by all the workers
+ *  of a server; a get changes the order of the pairs, so it needs the
+ *  lock as much as a put does.
+ */
+public class DhtCache {
+	public static final String LRU = "lru";
+	public static final String TINYLFU = "tinylfu";
+
+	// gets between two halvings of the sketch, per cached pair
+	private static final int SAMPLE_PER_ENTRY = 10;
+	private static final int MAX_COUNT = 15;	// counters stop there
+	private static final int ROWS = 4;		// of the sketch
+
+	/** A cached value and the time it expires at. */
+	private static class Entry {
+		String val;
+		long expires;	// System.nanoTime() past which it is gone
+		Entry(String val, long expires) {
+			this.val = val; this.expires = expires;
+		}
+	}
+
+	private final int capacity;
+	private final long ttlNanos;	// 0 for no expiry
+	// pairs in access order, least recently used first
+	private final LinkedHashMap<String,Entry> entries;
+	private final byte[][] sketch;	// null for lru
+	private int samples;		// gets since the last halving
+
+	private long hits, misses, evictions, expirations, rejections;
+
+	/** Construct an empty cache.
+	 *  @param capacity is the largest number of pairs held
+	 *  @param ttlMillis is the time a pair is kept, 0 for ever
+	 *  @param policy is LRU or TINYLFU
+	 */
+	public DhtCache(int capacity, long ttlMillis, String policy) {
+		if (capacity < 1 || ttlMillis < 0)
+			throw new IllegalArgumentException("cacheSize " + capacity +
+					" cacheTtl " + ttlMillis);
+		this.capacity = capacity;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+		if (policy.equals(TINYLFU)) {
+			// a power of two of counters per row, some per pair
+			int width = Integer.highestOneBit(
+					Math.max(16, capacity * 2 - 1));
+			sketch = new byte[ROWS][width];
+		} else if (policy.equals(LRU)) {
+			sketch = null;
+		} else {
+			throw new IllegalArgumentException("cachePolicy " + policy);
+		}
+	}
+
+	/** Look up a key.
+	 *  @return its value, or null if it is not cached or has expired
+	 */
+	public synchronized String get(String key) {
+		if (sketch != null) record(key);
+		Entry e = entries.get(key);
+		if (e == null) {
+			misses++; return null;
+		}
+		if (expired(e, System.nanoTime())) {
+			entries.remove(key);
+			expirations++; misses++;
+			return null;
+		}
+		hits++;
+		return e.val;
+	}
+
+	/** Cache a pair, replacing the value of a cached key.
+	 *  A full cache first evicts a pair, or with TINYLFU may turn the
+	 *  new one away.
+	 */
+	public synchronized void put(String key, String val) {
+		long now = System.nanoTime();
+		long expires = now + ttlNanos;
+		Entry e = entries.get(key);
+		if (e != null) {
+			e.val = val; e.expires = expires;
+			return;
+		}
+		if (entries.size() >= capacity) {
+			Map.Entry<String,Entry> victim =
+					entries.entrySet().iterator().next();
+			if (expired(victim.getValue(), now)) {
+				expirations++;
+			} else if (sketch != null &&
+				   frequency(key) <= frequency(victim.getKey())) {
+				rejections++;
+				return;
+			} else {
+				evictions++;
+			}
+			entries.remove(victim.getKey());
+		}
+		entries.put(key, new Entry(val, expires));
+	}
+
+	/** Drop a key, if it is cached. */
+	public synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	/** Drop all pairs; the counters are kept. */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/** @return the fraction of the gets that found their key */
+	public synchronized double hitRatio() {
+		long gets = hits + misses;
+		return (gets == 0) ? 0 : (double) hits / gets;
+	}
+
+	/** @return the counters and the hit ratio, on one line */
+	@Override
+	public synchronized String toString() {
+		return String.format("cache size=%d hits=%d misses=%d " +
+				"evictions=%d expired=%d rejected=%d hitRatio=%.3f",
+				entries.size(), hits, misses, evictions,
+				expirations, rejections, hitRatio());
+	}
+
+	private boolean expired(Entry e, long now) {
+		return ttlNanos != 0 && now - e.expires > 0;
+	}
+
+	/** Count a get of key in the sketch. */
+	private void record(String key) {
+		int h = spread(key.hashCode());
+		for (int i = 0; i < ROWS; i++) {
+			byte[] row = sketch[i];
+			int j = index(h, i, row.length);
+			if (row[j] < MAX_COUNT) row[j]++;
+		}
+		if (++samples >= SAMPLE_PER_ENTRY * capacity) {
+			// halve all counters, so old gets count less
+			for (byte[] row : sketch) {
+				for (int j = 0; j < row.length; j++) row[j] >>= 1;
+			}
+			samples /= 2;
+		}
+	}
+
+	/** @return the estimated number of recent gets of key */
+	private int frequency(String key) {
+		int h = spread(key.hashCode());
+		int min = MAX_COUNT;
+		for (int i = 0; i < ROWS; i++) {
+			min = Math.min(min, sketch[i][index(h, i, sketch[i].length)]);
+		}
+		return min;
+	}
+
+	private static int spread(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/** The counter of row i for hash h, from a different mix per row. */
+	private static int index(int h, int i, int width) {
+		h += (i + 1) * 0x7f4a7c15;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h & (width - 1);
+	}
+}
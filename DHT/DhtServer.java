@@ -1,18 +1,33 @@
 /** Server for simple distributed hash table that stores (key,value) strings.
  *  
- *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ debug ] [ predFile ]
+ *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ debug ]
+ *  		[ cacheSize=N ] [ cacheTtl=MILLIS ] [ cachePolicy=lru|tinylfu ]
+ *  		[ workers=N ] [ predFile ]
  *  
  *  myIp	is the IP address to use for this server's socket
- *  numRoutes	is the max number of nodes allowed in the DHT's routing table;
- *  		typically lg(numNodes)
+ *  numRoutes	is the number of fingers looked up again every FIX_MILLIS,
+ *  		going round the finger table; typically lg(numNodes)
  *  cfgFile	is the name of a file in which the server writes the IP
  *		address and port number of its socket
  *  cache	is an optional argument; if present it is the literal string
  *		"cache"; when cache is present, the caching feature of the
  *		server is enabled; otherwise it is not
+ *  cacheSize	is the largest number of pairs cached (default 1000)
+ *  cacheTtl	is the number of milliseconds a pair stays cached, so a
+ *		value changed by a put that did not pass through this server
+ *		is served that long at most; 0 keeps pairs until evicted
+ *		(default 10000)
+ *  cachePolicy	is "lru" to evict the least recently used pair and cache
+ *		every new one, or "tinylfu" to also turn a new pair away if
+ *		its key was asked for less often than the one it would evict
+ *		(default lru); see DhtCache
  *  debug	is an optional argument; if present it is the literal string
  *		"debug"; when debug is present, a copy of every packet received
- *		and sent is printed on stdout
+ *		and sent is printed on stdout, and with cache the counters
+ *		and hit ratio of the cache after every get that looks at it
+ *  workers	is an optional argument; the number of threads that process
+ *		get, put and lookup packets and replies to them at the same
+ *		time (default one per processor)
  *  predFile	is an optional argument specifying the configuration file of
  *		this node's predecessor in the DHT; this file is used to obtain
  *		the IP address and port number of the predecessor's socket,
@@ -64,7 +79,29 @@
  *  "transfer" type is used to transfer (key,value) pairs to a newly added
  *  server. The "update" type is used to update the predecessor, successor,
  *  or hash range of another DHT server, usually when a join or leave even 
- *  happens. 
+ *  happens. The "lookup" type asks the DHT which server is responsible for
+ *  the hash in its target field; that server answers the server in the
+ *  relayAdr field with an "owner" packet carrying its senderInfo.
+ *
+ *  Packets are routed with a finger table, as in Chord. Finger i is the
+ *  server responsible for the hash 2^i past this server's first hash,
+ *  modulo 2^31. A packet for hash goes to the finger, or the successor,
+ *  that is the closest one before hash going round the ring, so every hop
+ *  at least halves the distance left and a request takes O(log N) hops.
+ *  Every FIX_MILLIS the server looks up numRoutes fingers again with
+ *  lookup packets, so the table fills after a join and follows joins and
+ *  leaves; fingers of a leaving server are dropped at once.
+ *
+ *  One thread receives all packets. Gets, puts, lookups and the replies to
+ *  them are processed by a pool of worker threads; join, leave, update,
+ *  transfer and owner packets, the reply to this server's join and the
+ *  finger lookups go through a single control thread, one at a time. The
+ *  workers hold the read lock of rangeLock while they process a packet and
+ *  the control thread holds the write lock, so a worker never sees a hash
+ *  range that is half changed, nor puts a key in a range that is being
+ *  transferred to another server. The pairs are a concurrent map and
+ *  the cache locks itself; the finger table is copied on every change,
+ *  so forward never waits for it.
  *
  *  Other fields and their use are described briefly below
  *  clientAdr 	is used to specify the IP address and port number of the 
@@ -96,11 +133,19 @@
  *              provide routing information that can be used by other servers.
  *              It also used in leave packet to let other servers know the IP
  *              address and port number information of the leaving server.
+ *  target	is the hash a lookup packet looks for; the owner packet
+ *              answering it has the same target and tag, the tag being the
+ *              index of the finger looked up.
+ *  hops	is the number of times a request was forwarded; the first
+ *              server prints it when debug is on, and drops it from the
+ *              reply to the client.
  */
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.lang.*;
 
 import org.w3c.dom.ls.LSOutput;
@@ -108,13 +153,26 @@ import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
 public class DhtServer {
-	private static int numRoutes;	// number of routes in routing table
+	private static int numRoutes;	// fingers looked up again per round
 	private static boolean cacheOn;	// enables caching when true
 	private static boolean debug;	// enables debug messages when true
 
-	private static HashMap<String,String> map;	// key/value pairs
-	private static HashMap<String,String> cache;	// cached pairs
-	private static List<Pair<InetSocketAddress,Integer>> rteTbl;
+	private static ConcurrentHashMap<String,String> map;	// key/value pairs
+	private static DhtCache cache;	// cached pairs, bounded
+	// finger i is the server responsible for first hash + 2^i, or null
+	private static List<Pair<InetSocketAddress,Integer>> fingers;
+	private static final int FINGERS = 31;
+	// time between rounds of finger lookups
+	private static final int FIX_MILLIS = 1000;
+	private static int nextFinger;	// next finger to look up
+
+	// read locked by workers, write locked by the control thread
+	private static final ReentrantReadWriteLock rangeLock =
+			new ReentrantReadWriteLock();
+	private static ThreadPoolExecutor workers;	// get, put, lookup
+	private static ExecutorService control;	// changes of the ring
+	// packets waiting for a worker, further ones are dropped
+	private static final int QUEUE_PER_WORKER = 1024;
 
 	private static DatagramSocket sock;
 	private static InetSocketAddress myAdr;
@@ -125,7 +183,7 @@ public class DhtServer {
 	private static Pair<Integer,Integer> hashRange; // my DHT hash range
 	private static int sendTag;		// tag for new outgoing packets
 	// flag for waiting leave message circle back
-	private static boolean stopFlag;
+	private static volatile boolean stopFlag;
 	 
 	/** Main method for DHT server.
 	 *  Processes command line arguments, initializes data, joins DHT,
@@ -135,7 +193,10 @@ public class DhtServer {
 		// process command-line arguments
 		if (args.length < 3) {
 			System.err.println("usage: DhtServer myIp numRoutes " +
-					   "cfgFile [debug] [ predFile ] ");
+					   "cfgFile [ cache ] [ debug ] " +
+					   "[ cacheSize=N ] [ cacheTtl=MILLIS ] " +
+					   "[ cachePolicy=lru|tinylfu ] " +
+					   "[ workers=N ] [ predFile ] ");
 			System.exit(1);
 		}
 		numRoutes = Integer.parseInt(args[1]);
@@ -143,9 +204,21 @@ public class DhtServer {
 		cacheOn = debug = false;
 		stopFlag = false;
 		String predFile = null;
+		int numWorkers = Runtime.getRuntime().availableProcessors();
+		int cacheSize = 1000;
+		long cacheTtl = 10000;
+		String cachePolicy = DhtCache.LRU;
 		for (int i = 3; i < args.length; i++) {
 			if (args[i].equals("cache")) cacheOn = true;
 			else if (args[i].equals("debug")) debug = true;
+			else if (args[i].startsWith("cacheSize="))
+				cacheSize = Integer.parseInt(args[i].substring(10));
+			else if (args[i].startsWith("cacheTtl="))
+				cacheTtl = Long.parseLong(args[i].substring(9));
+			else if (args[i].startsWith("cachePolicy="))
+				cachePolicy = args[i].substring(12);
+			else if (args[i].startsWith("workers="))
+				numWorkers = Integer.parseInt(args[i].substring(8));
 			else predFile = args[i];
 		}
 		// open socket for receiving packets
@@ -179,15 +252,32 @@ public class DhtServer {
 		} catch(Exception e) {
 			System.err.println("usage: DhtServer myIp numRoutes " +
 					   "cfgFile [ cache ] [ debug ] " +
-					   "[ predFile ] ");
+					   "[ cacheSize=N ] [ cacheTtl=MILLIS ] " +
+					   "[ cachePolicy=lru|tinylfu ] " +
+					   "[ workers=N ] [ predFile ] ");
 			System.exit(1);
 		}
 		myAdr = new InetSocketAddress(myIp,sock.getLocalPort());
 		
 		// initialize data structures	
-		map = new HashMap<String,String>();
-		cache = new HashMap<String,String>();
-		rteTbl = new LinkedList<Pair<InetSocketAddress,Integer>>();
+		map = new ConcurrentHashMap<String,String>();
+		try {
+			cache = new DhtCache(cacheSize, cacheTtl, cachePolicy);
+		} catch (IllegalArgumentException e) {
+			System.err.println("DhtServer: bad " + e.getMessage());
+			System.exit(1);
+		}
+		fingers = new CopyOnWriteArrayList<Pair<InetSocketAddress,Integer>>(
+				Collections.nCopies(FINGERS,
+				(Pair<InetSocketAddress,Integer>) null));
+		// a full queue drops packets, like a full socket buffer would
+		numWorkers = Math.max(1, numWorkers);
+		workers = new ThreadPoolExecutor(numWorkers, numWorkers,
+				0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(
+					QUEUE_PER_WORKER * numWorkers),
+				new ThreadPoolExecutor.DiscardPolicy());
+		control = Executors.newSingleThreadExecutor();
 
 		// join the DHT (if not the first node)
 		hashRange = new Pair<Integer,Integer>(0,Integer.MAX_VALUE);
@@ -214,7 +304,7 @@ public class DhtServer {
 		 */ 
 		SignalHandler handler = new SignalHandler() {
 		    public void handle(Signal signal) {
-		        leave();
+		        control.execute(() -> leave());
 				// System.exit(0); //comment by us
 		    }  
 		};
@@ -223,9 +313,19 @@ public class DhtServer {
 		Signal.handle(new Signal("INT"), handler); // capture ctrl+c
 		
 		// while (true) { 	//comment by us
+		long nextFix = System.currentTimeMillis() + FIX_MILLIS;
 		while (!stopFlag) {
+			long now = System.currentTimeMillis();
+			if (now >= nextFix) {
+				control.execute(() -> fixFingers());
+				nextFix = now + FIX_MILLIS;
+			}
 			try {
+				// wake up in time for the next round of lookups
+				sock.setSoTimeout((int) Math.max(1, nextFix - now));
 			    sender = p.receive(sock,debug);
+			} catch(SocketTimeoutException e) {
+				continue;
 			} catch(Exception e) {
 				System.err.println("received packet failure");
 				continue;
@@ -243,10 +343,38 @@ public class DhtServer {
 				reply.send(sock,sender,debug);
 				continue;
 			}
-			handlePacket(p,sender);
+			dispatch(p,sender);
+			// the packet now belongs to the thread processing it
+			p = new Packet();
+		}
+		workers.shutdown();
+		control.shutdown();
+	}
+
+	/** Hand a packet to the control thread if it changes the ring, or
+	 *  to a worker.
+	 *  @param p is a packet
+	 *  @param senderAdr is the address (ip:port) of the sender
+	 */
+	public static void dispatch(Packet p, InetSocketAddress senderAdr) {
+		if (isControl(p)) {
+			control.execute(() -> handlePacket(p, senderAdr));
+		} else {
+			workers.execute(() -> handlePacket(p, senderAdr));
 		}
 	}
 
+	/** @return true if p is processed by the control thread: a packet
+	 *  of type join, leave, update, transfer or owner, or the reply to
+	 *  this server's join, a success without a key
+	 */
+	private static boolean isControl(Packet p) {
+		return p.type.equals("join") || p.type.equals("leave") ||
+		       p.type.equals("update") || p.type.equals("transfer") ||
+		       p.type.equals("owner") ||
+		       (p.type.equals("success") && p.key == null);
+	}
+
 	/** Hash a string, returning a 32 bit integer.
 	 *  @param s is a string, typically the key from some get/put operation.
 	 *  @return and integer hash value in the interval [0,2^31).
@@ -283,7 +411,7 @@ public class DhtServer {
 	 *  field to its successor. 
 	 *	
 	 *	Transfers all keys and values to predecessor.  
-	 *	Clear all the existing cache, map and rteTbl information
+	 *	Clear all the existing cache, map and finger information
 	 */
 	public static void leave() {
 		Packet p = new Packet();
@@ -301,10 +429,8 @@ public class DhtServer {
 	 *  
 	 *	The update message might contains infomation need update,
 	 *	including predInfo, succInfo, and hashRange. 
-	 *  And add the new Predecessor/Successor into the routing table.
-	 *	If succInfo is updated, succInfo should be removed from 
-	 *	the routing table and the new succInfo should be added
-	 *	into the new routing table.
+	 *	The successor is always a candidate of forward, fingers
+	 *	that moved are found by the next lookups.
 	 */
 	public static void handleUpdate(Packet p, InetSocketAddress adr) {
 		if (p.predInfo != null){
@@ -312,7 +438,6 @@ public class DhtServer {
 		}
 		if (p.succInfo != null){
 			succInfo = p.succInfo;
-			addRoute(succInfo);
 		}
 		if (p.hashRange != null){
 			hashRange = p.hashRange;
@@ -325,7 +450,7 @@ public class DhtServer {
 	*
 	*  If the leave packet is sent by this server, set the stopFlag.
 	*  Otherwise firstly send the received leave packet to its successor,
-	*  and then remove the routing entry with the senderInfo of the packet.
+	*  and then drop the fingers to the server in the senderInfo of the packet.
 	*/
 	public static void handleLeave(Packet p, InetSocketAddress adr) {
 		// leave packet circled back to this server
@@ -358,15 +483,11 @@ public class DhtServer {
 			p.predInfo = predInfo;
 			p.send(sock, succInfo.left, debug);
 
-			// clearing everything before leaving
-			cache = null;
-			// remove the routes one by one to enable printing
-			while (!rteTbl.isEmpty()){
-				removeRoute(rteTbl.get(0));
-			}
-
-			rteTbl = null;
-			map = null;
+			// clearing everything before leaving, workers may still
+			// be answering from them
+			cache.clear();
+			for (int i = 0; i < FINGERS; i++) setFinger(i, null);
+			map.clear();
 
 			return;
 		}
@@ -374,7 +495,7 @@ public class DhtServer {
 		// send the leave message to successor 
 		p.send(sock, succInfo.left, debug);
 
-		//remove the senderInfo from route table
+		//drop the fingers to the leaving server
 		removeRoute(p.senderInfo);
 	}
 	
@@ -418,9 +539,6 @@ public class DhtServer {
         hashRange.right = firstHash;
         succInfo = new Pair(succAdr, firstHash);
 
-        //add succInfo to this server's routing table
-        addRoute(succInfo);
-
 		//send packet to new successor
 		p.send(sock, succAdr, debug);
 
@@ -482,16 +600,23 @@ public class DhtServer {
 			} else {
 				replyAdr = senderAdr;
 			}
-			if (map.containsKey(p.key)) {
-				p.type = "success"; p.val = map.get(p.key);
+			String val = map.get(p.key);
+			if (val != null) {
+				p.type = "success"; p.val = val;
 			} else {
 				p.type = "no match";
 			}
+			if (p.relayAdr == null) reportHops(p);
 			p.send(sock,replyAdr,debug);
 		} else {
 			// if a server receives a get request for a key it's not
 			// responsible for, check if it's in the cache
-			if (cacheOn && cache.containsKey(p.key)) {
+			String cached = null;
+			if (cacheOn) {
+				cached = cache.get(p.key);
+				if (debug) System.out.println(cache);
+			}
+			if (cached != null) {
 
 				// respond as though it is the responsible server
 				if (p.relayAdr != null) {
@@ -500,7 +625,8 @@ public class DhtServer {
 				} else {
 					replyAdr = senderAdr;
 				}
-				p.type = "success"; p.val = cache.get(p.key);
+				p.type = "success"; p.val = cached;
+				if (p.relayAdr == null) reportHops(p);
 				p.send(sock, replyAdr, debug);
 				return;
 			}
@@ -540,9 +666,8 @@ public class DhtServer {
             }
             if (p.val.equals("")) {
             	//got an empty val, then remove key from map
-                if (map.containsKey(p.key)) {
+                if (map.remove(p.key) != null) {
                     p.type = "success";
-                    map.remove(p.key);
                 } else {
                     p.type = "no match";
                 }
@@ -551,11 +676,12 @@ public class DhtServer {
                 map.put(p.key, p.val);
                 p.type = "success";
             }
+            if (p.relayAdr == null) reportHops(p);
             p.send(sock,replyAdr,debug);
         } else {
             // if the server receives a put request for a key it's not
 			// responsible for, remove it from cache
-			if (cacheOn && cache.containsKey(p.key)) {
+			if (cacheOn) {
 				cache.remove(p.key);
 			}
 
@@ -586,8 +712,8 @@ public class DhtServer {
 	 *  @param senderAdr is the the address (ip:port) of the sender
 	 *
 	 * this function runs on the first server that receives the request from the client
-	 * it adds the senderInfo of the packet to this servers routing Table
-	 * and sets the clientAdr, relayAdr, senderInfo to null
+	 * it reports the hops the request took and sets the clientAdr, relayAdr,
+	 * senderInfo and hops to null
 	 * if the type of packet is "no match" or "failure" it sends it back to the client
 	 * if the type is success and it is a get or push request add this to the cache, and send success to client
 	 * and if this is a success from join, add to this joining server the relevant values
@@ -595,7 +721,7 @@ public class DhtServer {
 	 */
 	public static void handleReply(Packet p, InetSocketAddress senderAdr) {
 		InetSocketAddress clientAddress = p.clientAdr;
-		addRoute(p.senderInfo);
+		if (clientAddress != null) reportHops(p);
 		p.clientAdr = null; p.relayAdr = null; p.senderInfo = null;
 
 		if (p.type.equals("no match")) {
@@ -607,8 +733,14 @@ public class DhtServer {
 		} else if (p.type.equals("success")) {
 			if (p.key != null) {
 
-				// store key/val in local cache
-				if (cacheOn) cache.put(p.key, p.val);
+				// store key/val in local cache; a put with
+				// an empty value removed the pair
+				if (cacheOn) {
+					if (p.val == null || p.val.equals(""))
+						cache.remove(p.key);
+					else
+						cache.put(p.key, p.val);
+				}
 
 				// reply to client's request for either put or get
 				p.send(sock, clientAddress, debug);
@@ -618,8 +750,6 @@ public class DhtServer {
 				predInfo = p.predInfo;
 				// update succInfo to this server
 				succInfo = p.succInfo;
-				// when adding succInfo add it to routing table as well
-				addRoute(succInfo);
 				hashRange = p.hashRange;
 				myInfo = new Pair(myAdr, hashRange.left);
 			}
@@ -629,10 +759,22 @@ public class DhtServer {
 	/** Handle packets received from clients or other servers
 	 *  @param p is a packet
 	 *  @param senderAdr is the address (ip:port) of the sender
+	 *
+	 *  Packets of the control thread are handled under the write lock
+	 *  of rangeLock, the others under its read lock.
 	 */
 	public static void handlePacket(Packet p, InetSocketAddress senderAdr) {
-		if (p.senderInfo != null && !p.type.equals("leave"))
-			addRoute(p.senderInfo);
+		Lock lock = isControl(p) ? rangeLock.writeLock() :
+					   rangeLock.readLock();
+		lock.lock();
+		try {
+			handleLocked(p, senderAdr);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void handleLocked(Packet p, InetSocketAddress senderAdr) {
 		if (p.type.equals("get")) {
 			handleGet(p,senderAdr);
 		} else if (p.type.equals("put")) {
@@ -649,101 +791,165 @@ public class DhtServer {
 			handleUpdate(p, senderAdr);
 		} else if (p.type.equals("leave")){
 			handleLeave(p, senderAdr);
+		} else if (p.type.equals("lookup")){
+			handleLookup(p, senderAdr);
+		} else if (p.type.equals("owner")){
+			handleOwner(p, senderAdr);
 		}
 	}
-	
-	/** Add an entry to the route tabe.
-	 *  @param newRoute is a pair (addr,hash) where addr is the socket
-	 *  address for some server and hash is the first hash in that
-	 *  server's range
+
+	/** Handle a lookup packet.
+	 *  @param p is a lookup packet
+	 *  @param senderAdr is the address (ip:port) of the sender
 	 *
-	 *  If the number of entries in the table exceeds the max
-	 *  number allowed, the first entry that does not refer to
-	 *  the successor of this server, is removed.
-	 *  If debug is true and the set of stored routes does change,
-	 *  print the string "rteTbl=" + rteTbl. (IMPORTANT)
+	 *  If this server is responsible for the target of the packet, answer
+	 *  the server that asked, in relayAdr, with an owner packet carrying
+	 *  this server's info; otherwise forward the packet.
 	 */
-	public static void addRoute(Pair<InetSocketAddress,Integer> newRoute) {
-		if (rteTbl.size() < numRoutes && !rteTbl.contains(newRoute)) {
-			rteTbl.add(newRoute);
-		} else if (!rteTbl.contains(newRoute)){
-			for (int i = 0; i < rteTbl.size(); i++) {
-				if (!rteTbl.get(i).equals(succInfo)) {
-					rteTbl.remove(i);
-					rteTbl.add(newRoute);
-					break;
-				}
+	public static void handleLookup(Packet p, InetSocketAddress senderAdr) {
+		if (hashRange.left <= p.target && p.target <= hashRange.right) {
+			InetSocketAddress asker = p.relayAdr;
+			p.type = "owner";
+			p.relayAdr = null;
+			p.senderInfo = myInfo;
+			p.send(sock, asker, debug);
+		} else {
+			forward(p, p.target);
+		}
+	}
+
+	/** Handle an owner packet, the answer to a lookup of this server.
+	 *  @param p is an owner packet
+	 *  @param senderAdr is the address (ip:port) of the sender
+	 *
+	 *  The tag is the index of the finger looked up; answers to lookups of
+	 *  an earlier first hash of this server are ignored.
+	 */
+	public static void handleOwner(Packet p, InetSocketAddress senderAdr) {
+		if (p.tag < 0 || p.tag >= FINGERS || p.senderInfo == null ||
+		    myInfo == null || p.target != fingerTarget(p.tag)) {
+			return;
+		}
+		if (debug) {
+			System.out.println("finger " + p.tag + " found in " +
+					   Math.max(0, p.hops) + " hops");
+		}
+		setFinger(p.tag, p.senderInfo);
+	}
+
+	/** Look up the next numRoutes fingers, going round the table.
+	 *
+	 *  Fingers whose target is in this server's own range are no use
+	 *  to forward, they are cleared without a lookup. Runs in the control
+	 *  thread, the only one that changes the range.
+	 */
+	public static void fixFingers() {
+		if (myInfo == null) return; // still joining
+		int sent = 0;
+		for (int n = 0; n < FINGERS && sent < numRoutes; n++) {
+			int i = nextFinger;
+			nextFinger = (nextFinger + 1) % FINGERS;
+			int target = fingerTarget(i);
+			if (hashRange.left <= target && target <= hashRange.right) {
+				setFinger(i, null);
+				continue;
 			}
+			Packet p = new Packet();
+			p.type = "lookup";
+			p.target = target;
+			p.tag = i;
+			p.relayAdr = myAdr;
+			forward(p, target);
+			sent++;
 		}
+	}
+
+	/** @return the hash finger i is responsible for */
+	private static int fingerTarget(int i) {
+		return (myInfo.right + (1 << i)) & 0x7fffffff;
+	}
+
+	/** @return the distance from hash from to hash to going round the
+	 *  ring, modulo 2^31
+	 */
+	private static int distance(int from, int to) {
+		return (to - from) & 0x7fffffff;
+	}
+
+	/** Print the hops a client request took, if debug is true, and drop
+	 *  them from the reply.
+	 */
+	private static void reportHops(Packet p) {
 		if (debug) {
-			System.out.println("rteTbl=" + rteTbl);
+			System.out.println("hops=" + Math.max(0, p.hops) +
+					   " for key " + p.key);
 		}
+		p.hops = -1;
 	}
 
-	/** Remove an entry from the route table.
-	 *  @param rmRoute is the route information for some server 
-	 *  need to be removed from route table
+	/** Set finger i to route, printing the table if debug is true and it
+	 *  changes.
+	 */
+	private static void setFinger(int i, Pair<InetSocketAddress,Integer> route) {
+		Pair<InetSocketAddress,Integer> old = fingers.get(i);
+		if (old == null ? route == null : old.equals(route)) return;
+		fingers.set(i, route);
+		if (debug) {
+			System.out.println("fingers=" + fingersString());
+		}
+	}
+
+	/** @return the fingers that are set, as i=(adr,hash) */
+	private static String fingersString() {
+		StringBuilder s = new StringBuilder("[");
+		for (int i = 0; i < FINGERS; i++) {
+			if (fingers.get(i) == null) continue;
+			if (s.length() > 1) s.append(", ");
+			s.append(i).append("=").append(fingers.get(i));
+		}
+		return s.append("]").toString();
+	}
+	
+	/** Drop the fingers to a server.
+	 *  @param rmRoute is the route information for some server that
+	 *  left the DHT
 	 *
-	 *  If the route information exists in current entries, remove it.
-	 *	Otherwise, do nothing.
-	 *  If debug is true and the set of stored routes does change,
-	 *  print the string "rteTbl=" + rteTbl. (IMPORTANT)
+	 *  The fingers are found again by the next lookups.
+	 *  If debug is true and the set of fingers does change,
+	 *  print the string "fingers=" + fingers.
 	 */
 	public static void removeRoute(Pair<InetSocketAddress,Integer> rmRoute){
-		boolean flag = rteTbl.indexOf(rmRoute) != -1;
-		if (flag) {
-			rteTbl.remove(rteTbl.indexOf(rmRoute));
-			if (debug) {
-				System.out.println("rteTbl= " + rteTbl);
-			}
+		for (int i = 0; i < FINGERS; i++) {
+			if (rmRoute.equals(fingers.get(i))) setFinger(i, null);
 		}
 	}
 
 
-	/** Forward a packet using the local routing table.
+	/** Forward a packet using the finger table.
 	 *  @param p is a packet to be forwarded
 	 *  @param hash is the hash of the packet's key field
 	 *
-	 *  This method selects a server from its route table that is
-	 *  "closest" to the target of this packet (based on hash).
-	 *  If firstHash is the first hash in a server's range, then
-	 *  we seek to minimize the difference hash-firstHash, where
-	 *  the difference is interpreted modulo the range of hash values.
-	 *  IMPORTANT POINT - handle "wrap-around" correctly. 
-	 *  Once a server is selected, p is sent to that server.
+	 *  The packet goes to the finger whose first hash is the closest one
+	 *  before hash, going round the ring from this server's first hash,
+	 *  so distances are taken modulo 2^31. The successor precedes the
+	 *  server responsible for hash, or is it, so it is the fallback when
+	 *  no finger is closer. Every hop counts in the hops of the packet.
 	 */
 	public static void forward(Packet p, int hash) {
-		// if routing table is empty dont forward to routing table, send to successor
-		if (rteTbl.size() == 0) {
-			p.send(sock, succInfo.left, debug);
-			return;
-		}
-
-		// differe saves the minimum positive difference between hash and first hash
-		// of each entry in the routing table
-		int difference = Integer.MAX_VALUE, index = -1;
-		// run on all servers in the routing table
-		for (int i = 0; i < rteTbl.size(); i++) {
-			int currentDifference = hash - rteTbl.get(i).right;
-			boolean positive = currentDifference >= 0;
-			if (currentDifference < difference && positive) {
-				difference = currentDifference;
-				index = i;
-			}
-		}
-		if (difference != Integer.MAX_VALUE){
-			p.send(sock, rteTbl.get(index).left, debug);
-		} else {
-			difference = 0;
-			// all the dufferences were negative, send packet to the router that has the largest difference
-			for (int i = 0; i < rteTbl.size(); i++) {
-				int currentDifference = rteTbl.get(i).right - hash;
-				if (currentDifference >= difference) {
-					difference = currentDifference;
-					index = i;
+		Pair<InetSocketAddress,Integer> next = succInfo;
+		if (myInfo != null) {
+			int best = distance(myInfo.right, succInfo.right);
+			int toHash = distance(myInfo.right, hash);
+			for (Pair<InetSocketAddress,Integer> finger : fingers) {
+				if (finger == null) continue;
+				int d = distance(myInfo.right, finger.right);
+				if (d > best && d <= toHash) {
+					best = d;
+					next = finger;
 				}
 			}
-			p.send(sock, rteTbl.get(index).left, debug);
 		}
+		p.hops = Math.max(0, p.hops) + 1;
+		p.send(sock, next.left, debug);
 	}
 }
\ No newline at end of file
@@ -13,6 +13,8 @@ public class Packet {
 	public InetSocketAddress clientAdr; // address of original client
 	public InetSocketAddress relayAdr; // address of first DHT server
 	public int tag;			// tag used to identify packet
+	public int target;		// hash looked up by a lookup packet
+	public int hops;		// times a request was forwarded
 	public Pair<Integer,Integer> hashRange;	// range of hash values
 	public Pair<InetSocketAddress,Integer> senderInfo;// address, first hash
 	public Pair<InetSocketAddress,Integer> succInfo; // address, first hash
@@ -28,7 +30,7 @@ public class Packet {
 	public void clear() {
 		type = null; ttl = 100; key = null; val = null;
 		reason = null; clientAdr = null; relayAdr = null;
-		tag = -1; hashRange = null;
+		tag = -1; target = -1; hops = -1; hashRange = null;
 		senderInfo = null; succInfo = null; predInfo = null;
 	}
 
@@ -94,6 +96,10 @@ public class Packet {
 				val=right;
 			} else if (left.equals("tag")){
 				tag = Integer.parseInt(right);
+			} else if (left.equals("target")){
+				target = Integer.parseInt(right);
+			} else if (left.equals("hops")){
+				hops = Integer.parseInt(right);
 			} else if (left.equals("relayAdr")){
 				chunks = right.split(":");
 				if (chunks.length != 2) return false;
@@ -148,6 +154,9 @@ public class Packet {
 		     	 (key == null || tag == -1)) {
 			reason = "gets and puts require key and tag";
 			return false;
+		} else if (type.equals("lookup") && (target < 0 || tag == -1)) {
+			reason = "lookups require target and tag";
+			return false;
 		}
 		return true;
 	}
@@ -208,6 +217,12 @@ public class Packet {
 		if (tag != -1) {
 			s.append("tag:"); s.append(tag); s.append("\n");
 		}
+		if (target != -1) {
+			s.append("target:"); s.append(target); s.append("\n");
+		}
+		if (hops != -1) {
+			s.append("hops:"); s.append(hops); s.append("\n");
+		}
 		if (val != null) {
 			s.append("value:"); s.append(val); s.append("\n");
 		}
@@ -252,13 +267,18 @@ public class Packet {
 	 * @param debug is a flag; if it is true, the received
 	 * packet is printed
 	 * @return the sender's socket address on success and null on failure
+	 * @throws SocketTimeoutException if the socket has a timeout and no
+	 * packet came in time
 	 */
-	public InetSocketAddress receive(DatagramSocket sock, boolean debug) {
+	public InetSocketAddress receive(DatagramSocket sock, boolean debug)
+			throws SocketTimeoutException {
 		clear();
 		byte[] buf = new byte[2000];
 		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
 		try {
 			sock.receive(pkt);
+		} catch(SocketTimeoutException e) {
+			throw e;
 		} catch(Exception e) {
 			System.out.println("receive exception: " + e);
 			return null;
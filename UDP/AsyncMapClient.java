@@ -0,0 +1,239 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Asynchronous client for MapServer.
+ *
+ * Requests are sent on a non-blocking DatagramChannel by a single I/O
+ * thread. Every request gets a #id: prefix, which the server echoes, and
+ * is completed when the reply with its id arrives. At most window requests
+ * are outstanding; the rest wait in a queue. A request that is not
+ * answered within timeoutMillis is resent, up to retries times, and then
+ * fails with a SocketTimeoutException.
+ *
+ * Futures are completed on the I/O thread, so callbacks attached to them
+ * should not block.
+ **/
+
+public class AsyncMapClient implements Closeable {
+    //room taken by the #id: prefix in a request, at most
+    public static final int ID_ROOM = 22;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int window;
+    private final long timeoutNanos;
+    private final int retries;
+    private final Thread io;
+
+    private final ConcurrentLinkedQueue<Request> queued =
+            new ConcurrentLinkedQueue<>();
+    // only touched by the I/O thread
+    private final HashMap<Long, Request> outstanding = new HashMap<>();
+    private final ByteBuffer in = ByteBuffer.allocateDirect(65507);
+    private long nextId;
+    private volatile boolean closed;
+
+    /** A request waiting for its reply. */
+    private static class Request {
+        final String body;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        ByteBuffer datagram;
+        long deadline;
+        int attempts;
+
+        Request(String body) {
+            this.body = body;
+        }
+    }
+
+    /**
+     * Open a client for the server at server.
+     * @param window is the maximum number of requests in flight
+     * @param timeoutMillis is the time to wait for a reply before resending
+     * @param retries is the number of times a request is resent
+     */
+    public AsyncMapClient(InetSocketAddress server, int window,
+                          long timeoutMillis, int retries) throws IOException {
+        this.window = Math.max(1, window);
+        this.timeoutNanos = timeoutMillis * 1000000L;
+        this.retries = retries;
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(server);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        io = new Thread(this::ioLoop, "AsyncMapClient");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    /**
+     * Send a raw request, such as get:foo or mput:...
+     * @return the reply, without the request id
+     */
+    public CompletableFuture<String> send(String request) {
+        Request r = new Request(request);
+        if (closed) {
+            r.future.completeExceptionally(new ClosedChannelException());
+            return r.future;
+        }
+        queued.add(r);
+        if (closed) {
+            // the I/O thread may have drained the queue before the add
+            r.future.completeExceptionally(new ClosedChannelException());
+            return r.future;
+        }
+        selector.wakeup();
+        return r.future;
+    }
+
+    /** @return the value of key, or null if there is none */
+    public CompletableFuture<String> get(String key) {
+        return send("get:" + key).thenApply(reply -> {
+            if (reply.startsWith("ok:")) return reply.substring(3);
+            if (reply.equals("no match")) return null;
+            throw new IllegalStateException(reply);
+        });
+    }
+
+    /** @return true if the key was present and its value was updated */
+    public CompletableFuture<Boolean> put(String key, String value) {
+        return send("put:" + key + ":" + value).thenApply(reply -> {
+            if (reply.equals("Ok")) return false;
+            if (reply.startsWith("updated:")) return true;
+            throw new IllegalStateException(reply);
+        });
+    }
+
+    /** @return true if the key was present and has been removed */
+    public CompletableFuture<Boolean> remove(String key) {
+        return send("remove:" + key).thenApply(reply -> {
+            if (reply.equals("Ok")) return true;
+            if (reply.equals("no match")) return false;
+            throw new IllegalStateException(reply);
+        });
+    }
+
+    /** Stop the I/O thread and fail the requests that are not answered. */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            io.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        channel.close();
+    }
+
+    private void ioLoop() {
+        try {
+            while (!closed) {
+                selector.select(nextTimeout());
+                selector.selectedKeys().clear();
+                receive();
+                // fill the window
+                while (outstanding.size() < window && !queued.isEmpty()) {
+                    Request r = queued.poll();
+                    r.datagram = ByteBuffer.wrap(("#" + nextId + ":" + r.body)
+                            .getBytes(StandardCharsets.US_ASCII));
+                    outstanding.put(nextId++, r);
+                    transmit(r);
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            System.err.println("AsyncMapClient: " + e);
+        } finally {
+            // no request sent from now on is taken, see send
+            closed = true;
+            ClosedChannelException closing = new ClosedChannelException();
+            for (Request r : outstanding.values()) {
+                r.future.completeExceptionally(closing);
+            }
+            for (Request r; (r = queued.poll()) != null; ) {
+                r.future.completeExceptionally(closing);
+            }
+        }
+    }
+
+    /** @return milliseconds until the next deadline, 0 if there is none */
+    private long nextTimeout() {
+        if (outstanding.isEmpty()) return 0;
+        long first = Long.MAX_VALUE;
+        for (Request r : outstanding.values()) {
+            first = Math.min(first, r.deadline);
+        }
+        return Math.max(1, (first - System.nanoTime()) / 1000000L);
+    }
+
+    /**
+     * Send r and set its deadline. A datagram the socket can not take right
+     * now is treated as lost and resent on timeout.
+     */
+    private void transmit(Request r) throws IOException {
+        r.datagram.rewind();
+        try {
+            channel.write(r.datagram);
+        } catch (PortUnreachableException e) {
+            // nobody is listening yet, the timeout takes care of it
+        }
+        r.attempts++;
+        r.deadline = System.nanoTime() + timeoutNanos;
+    }
+
+    /** Complete the requests whose replies are waiting on the channel. */
+    private void receive() throws IOException {
+        while (true) {
+            in.clear();
+            try {
+                if (channel.receive(in) == null) return;
+            } catch (PortUnreachableException e) {
+                continue;
+            }
+            in.flip();
+            byte[] bytes = new byte[in.remaining()];
+            in.get(bytes);
+            String reply = new String(bytes, StandardCharsets.US_ASCII);
+            int colon = reply.indexOf(':');
+            if (!reply.startsWith("#") || colon < 0) continue;
+            Request r;
+            try {
+                r = outstanding.remove(Long.parseLong(reply.substring(1, colon)));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            // null for a duplicate reply to a request that was resent
+            if (r != null) r.future.complete(reply.substring(colon + 1));
+        }
+    }
+
+    /** Resend or fail the requests whose deadline has passed. */
+    private void expire() throws IOException {
+        long now = System.nanoTime();
+        Iterator<Request> it = outstanding.values().iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (r.deadline > now) continue;
+            if (r.attempts > retries) {
+                it.remove();
+                r.future.completeExceptionally(new SocketTimeoutException(
+                        "no reply to " + r.body));
+            } else {
+                transmit(r);
+            }
+        }
+    }
+}
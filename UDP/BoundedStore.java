@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * MapStore with a memory budget. Every pair is charged the bytes of its
+ * key and value plus ENTRY_OVERHEAD for the objects that hold it; when a
+ * put takes the store over its budget, entries chosen by the eviction
+ * policy are dropped until it fits again.
+ *
+ * The store is split in SEGMENTS segments, picked by key hash, each with
+ * its own lock, map, policy and an equal share of the budget, so workers
+ * touching different segments do not wait for each other.
+ **/
+
+public class BoundedStore implements MapStore {
+    // rough heap footprint of a pair besides its key and value bytes:
+    // the Entry, its ByteKey, two array headers and the HashMap node
+    public static final int ENTRY_OVERHEAD = 112;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder evicted = new LongAdder();
+    private volatile Consumer<ByteKey> evictions = key -> { };
+
+    /**
+     * @param budget is the number of bytes the pairs may take
+     * @param policy is the eviction policy: lru, clock or tinylfu
+     */
+    public BoundedStore(long budget, String policy) {
+        long share = Math.max(1, budget / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(share, newPolicy(policy, share));
+        }
+    }
+
+    private static EvictionPolicy newPolicy(String name, long budget) {
+        switch (name) {
+            case "lru": return new LruPolicy();
+            case "clock": return new ClockPolicy();
+            case "tinylfu": return new TinyLfuPolicy(budget);
+            default:
+                throw new IllegalArgumentException("unknown policy " + name);
+        }
+    }
+
+    /** One independently locked part of the store. */
+    private class Segment {
+        final HashMap<ByteKey, EvictionPolicy.Entry> map = new HashMap<>();
+        final EvictionPolicy policy;
+        final long budget;
+        long cost;
+
+        Segment(long budget, EvictionPolicy policy) {
+            this.budget = budget;
+            this.policy = policy;
+        }
+
+        /** Evict entries until the segment is within its budget. */
+        void evict() {
+            while (cost > budget) {
+                EvictionPolicy.Entry victim = policy.victim();
+                if (victim == null) return;
+                policy.onRemove(victim);
+                map.remove(victim.key);
+                cost -= victim.cost;
+                evicted.increment();
+                evictions.accept(victim.key);
+            }
+        }
+    }
+
+    private Segment segmentFor(ByteKey key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public boolean put(ByteKey key, byte[] buf, int valOff, int valLen) {
+        byte[] value = Arrays.copyOfRange(buf, valOff, valOff + valLen);
+        long cost = ENTRY_OVERHEAD + key.length() + valLen;
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            EvictionPolicy.Entry e = s.map.get(key);
+            boolean existed = (e != null);
+            if (existed) {
+                s.cost += cost - e.cost;
+                e.value = value;
+                e.setCost(cost);
+                s.policy.onAccess(e);
+            } else {
+                e = new EvictionPolicy.Entry(key.copy(), value, cost);
+                s.map.put(e.key, e);
+                s.cost += cost;
+                s.policy.onInsert(e);
+            }
+            s.evict();
+            return existed;
+        }
+    }
+
+    public int get(ByteKey key, ByteBuffer out) {
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            EvictionPolicy.Entry e = s.map.get(key);
+            if (e == null) return -1;
+            s.policy.onAccess(e);
+            if (e.value.length <= out.remaining()) out.put(e.value);
+            return e.value.length;
+        }
+    }
+
+    public boolean remove(ByteKey key) {
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            EvictionPolicy.Entry e = s.map.remove(key);
+            if (e == null) return false;
+            s.policy.onRemove(e);
+            s.cost -= e.cost;
+            return true;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long memory() {
+        return cost();
+    }
+
+    public void forEach(BiConsumer<ByteKey, byte[]> action) {
+        for (Segment s : segments) {
+            List<EvictionPolicy.Entry> entries;
+            synchronized (s) {
+                entries = new ArrayList<>(s.map.values());
+            }
+            for (EvictionPolicy.Entry e : entries) action.accept(e.key, e.value);
+        }
+    }
+
+    public void onEvict(Consumer<ByteKey> listener) {
+        evictions = listener;
+    }
+
+    /** @return the number of pairs evicted so far */
+    public long evicted() {
+        return evicted.sum();
+    }
+
+    /** @return the number of bytes charged for the pairs held */
+    public long cost() {
+        long cost = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                cost += s.cost;
+            }
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Map key made of raw ASCII bytes. A ByteKey can either own a private copy
+ * of its bytes (keys stored in a map) or be a reusable probe that points
+ * into a receive buffer, so lookups never have to build a String.
+ * Probes must not be stored, use copy() for that.
+ **/
+
+public class ByteKey {
+    private byte[] bytes;
+    private int off;
+    private int len;
+    private int hash;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Create an empty probe. */
+    public ByteKey() {
+        set(EMPTY, 0, 0);
+    }
+
+    /**
+     * Point this key at len bytes of buf starting at off.
+     * @return this key
+     */
+    public ByteKey set(byte[] buf, int off, int len) {
+        this.bytes = buf;
+        this.off = off;
+        this.len = len;
+        int h = 1;
+        for (int i = off; i < off + len; i++) h = 31 * h + buf[i];
+        this.hash = h;
+        return this;
+    }
+
+    /** @return a key owning a private copy of the bytes of this key */
+    public ByteKey copy() {
+        ByteKey k = new ByteKey();
+        k.bytes = Arrays.copyOfRange(bytes, off, off + len);
+        k.len = len;
+        k.hash = hash;
+        return k;
+    }
+
+    public byte[] array() { return bytes; }
+    public int offset() { return off; }
+    public int length() { return len; }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteKey)) return false;
+        ByteKey k = (ByteKey) o;
+        return hash == k.hash && Arrays.equals(bytes, off, off + len,
+                k.bytes, k.off, k.off + k.len);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, off, len, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * CLOCK eviction, an approximation of LRU where a hit only sets a
+ * reference bit. The hand sweeps the entries in insertion order, clearing
+ * the bits it finds set, and stops at the first entry without one.
+ **/
+
+public class ClockPolicy implements EvictionPolicy {
+    private final Queue ring = new Queue();
+
+    public void onInsert(Entry e) {
+        ring.addFirst(e);
+    }
+
+    public void onAccess(Entry e) {
+        e.referenced = true;
+    }
+
+    public void onRemove(Entry e) {
+        ring.remove(e);
+    }
+
+    public Entry victim() {
+        // the tail of the queue is the position of the hand
+        Entry e = ring.last();
+        while (e != null && e.referenced) {
+            e.referenced = false;
+            ring.moveToFront(e);
+            e = ring.last();
+        }
+        return e;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Decides which entry a BoundedStore segment evicts when it is over its
+ * byte budget. A policy is only called with the segment lock held.
+ **/
+
+public interface EvictionPolicy {
+    /** An entry was added. */
+    void onInsert(Entry e);
+
+    /** An entry was read or updated. */
+    void onAccess(Entry e);
+
+    /** An entry was removed, by the client or by eviction. */
+    void onRemove(Entry e);
+
+    /** @return the entry to evict next, the store removes it */
+    Entry victim();
+
+    /** A pair held by a BoundedStore, with the fields the policies use. */
+    class Entry {
+        public final ByteKey key;
+        public byte[] value;
+        public long cost;       // bytes charged against the budget
+        Entry prev, next;       // links of the queue holding the entry
+        Queue queue;            // the queue holding the entry, if any
+        boolean referenced;     // CLOCK reference bit
+
+        public Entry(ByteKey key, byte[] value, long cost) {
+            this.key = key;
+            this.value = value;
+            this.cost = cost;
+        }
+
+        /** Change the cost, keeping the cost of the queue up to date. */
+        void setCost(long cost) {
+            if (queue != null) queue.cost += cost - this.cost;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Intrusive doubly-linked queue of entries, most recent first,
+     * that keeps track of the cost of its entries.
+     */
+    class Queue {
+        private Entry head, tail;
+        long cost;
+
+        void addFirst(Entry e) {
+            e.queue = this;
+            e.prev = null;
+            e.next = head;
+            if (head != null) head.prev = e; else tail = e;
+            head = e;
+            cost += e.cost;
+        }
+
+        void remove(Entry e) {
+            if (e.prev != null) e.prev.next = e.next; else head = e.next;
+            if (e.next != null) e.next.prev = e.prev; else tail = e.prev;
+            e.prev = e.next = null;
+            e.queue = null;
+            cost -= e.cost;
+        }
+
+        void moveToFront(Entry e) {
+            remove(e);
+            addFirst(e);
+        }
+
+        Entry last() {
+            return tail;
+        }
+
+        boolean isEmpty() {
+            return head == null;
+        }
+    }
+}
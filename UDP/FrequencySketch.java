@@ -0,0 +1,56 @@
+/**
+ * Count-min sketch of how often keys were seen, used by TinyLfuPolicy to
+ * decide admission. Counters saturate at 15 and are all halved once the
+ * number of increments reaches ten times the width, so old popularity
+ * fades away.
+ **/
+
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS =
+            {0x97cb3127, 0x2ee34ae1, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final byte[][] rows;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /** @param width is the number of counters per row, a power of two */
+    public FrequencySketch(int width) {
+        rows = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return h & mask;
+    }
+
+    public void increment(ByteKey key) {
+        int hash = key.hashCode();
+        for (int r = 0; r < DEPTH; r++) {
+            int i = index(hash, r);
+            if (rows[r][i] < 15) rows[r][i]++;
+        }
+        if (++additions >= sampleSize) reset();
+    }
+
+    /** @return the estimated number of times key was seen */
+    public int frequency(ByteKey key) {
+        int hash = key.hashCode();
+        int min = 15;
+        for (int r = 0; r < DEPTH; r++) {
+            min = Math.min(min, rows[r][index(hash, r)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (byte[] row : rows) {
+            for (int i = 0; i < row.length; i++) row[i] >>= 1;
+        }
+        additions /= 2;
+    }
+}
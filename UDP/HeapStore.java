@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Default MapStore, a ConcurrentHashMap from ByteKey to value bytes.
+ **/
+
+public class HeapStore implements MapStore {
+    private final ConcurrentHashMap<ByteKey, byte[]> map =
+            new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder(); // of keys and values
+
+    public boolean put(ByteKey key, byte[] buf, int valOff, int valLen) {
+        byte[] value = Arrays.copyOfRange(buf, valOff, valOff + valLen);
+        // updates keep the stored key, only new keys are copied
+        byte[] old = map.replace(key, value);
+        if (old == null) old = map.put(key.copy(), value);
+        bytes.add((old == null) ? key.length() + valLen : valLen - old.length);
+        return old != null;
+    }
+
+    public int get(ByteKey key, ByteBuffer out) {
+        byte[] value = map.get(key);
+        if (value == null) return -1;
+        if (value.length <= out.remaining()) out.put(value);
+        return value.length;
+    }
+
+    public boolean remove(ByteKey key) {
+        byte[] old = map.remove(key);
+        if (old == null) return false;
+        bytes.add(-(key.length() + old.length));
+        return true;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long memory() {
+        return bytes.sum() + (long) map.size() * BoundedStore.ENTRY_OVERHEAD;
+    }
+
+    public void forEach(BiConsumer<ByteKey, byte[]> action) {
+        map.forEach(action);
+    }
+}
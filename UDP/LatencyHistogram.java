@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram: values are counted
+ * in log-linear buckets, every power of two split into SUB_BUCKETS / 2
+ * linear sub-buckets, so a percentile is reported within 1/64 (about 1.6%)
+ * of the recorded value whatever its magnitude. Recording is lock-free and
+ * may be done from any number of threads.
+ **/
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    //enough buckets for any non-negative long
+    private static final int SIZE = (64 - SUB_BITS) * HALF + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** @return the bucket counting value */
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /** @return the largest value counted by bucket i */
+    private static long highest(int i) {
+        int shift = Math.max(0, i / HALF - 1);
+        long sub = i - shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Count one value, negative values are counted as 0. */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /** Add the counts of other to this histogram. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < SIZE; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /** Forget all recorded values. */
+    public void reset() {
+        for (int i = 0; i < SIZE; i++) counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** @return the number of recorded values */
+    public long count() {
+        return total.get();
+    }
+
+    /** @return the largest recorded value, 0 if there is none */
+    public long max() {
+        return max.get();
+    }
+
+    /** @return the mean of the recorded values, 0 if there is none */
+    public double mean() {
+        long n = total.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile is between 0 and 100, such as 99.9
+     * @return the value below which percentile percent of the recorded
+     * values fall, 0 if there is none
+     */
+    public long percentile(double percentile) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < SIZE; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+}
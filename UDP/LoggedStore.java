@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * MapStore that makes another store persistent. Every put and remove is
+ * applied to the inner store and appended to a MapLog in the same critical
+ * section, so the log holds the mutations of a key in the order they were
+ * applied. Keys are spread over a fixed set of locks to let workers that
+ * touch different keys proceed in parallel.
+ *
+ * Every snapshotSeconds the log is rolled to a new generation and the
+ * store is written to snapshot.<gen>; older logs and snapshots are then
+ * deleted. The snapshot is taken while workers keep running, so it may
+ * already hold some mutations of log.<gen>; replaying that log over it
+ * gives the same result because the records are applied in order.
+ *
+ * On open the latest snapshot is loaded and the logs from its generation
+ * on are replayed, the new log starts in the generation after them.
+ *
+ * Pairs an inner store with a memory budget evicts are logged as removes,
+ * in the critical section of the put that evicted them, so recovery does
+ * not bring them back. The put waits for them to be durable along with
+ * its own record.
+ **/
+
+public class LoggedStore implements MapStore {
+    private static final int LOCKS = 64;
+
+    private final MapStore store;
+    private final MapLog log;
+    private final File dir;
+    private final Object[] locks = new Object[LOCKS];
+
+    private LoggedStore(MapStore store, MapLog log, File dir) {
+        this.store = store;
+        this.log = log;
+        this.dir = dir;
+        for (int i = 0; i < LOCKS; i++) locks[i] = new Object();
+        store.onEvict(key -> log.append(MapLog.REMOVE, key, null, 0, 0));
+    }
+
+    /**
+     * Recover the contents of dir into store and start logging to it.
+     * @param dir is the directory holding the logs and snapshots
+     * @param store is the (empty) store to recover into
+     * @param syncMillis is the force policy of the log, see MapLog
+     * @param snapshotSeconds is the time between snapshots, 0 for none
+     */
+    public static LoggedStore open(File dir, MapStore store, long syncMillis,
+                                   long snapshotSeconds) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        long start = System.currentTimeMillis();
+        List<Long> snapshots = generations(dir, "snapshot.");
+        List<Long> logs = generations(dir, "log.");
+
+        long first = 0, pairs = 0, records = 0;
+        if (!snapshots.isEmpty()) {
+            first = snapshots.get(snapshots.size() - 1);
+            pairs = MapSnapshot.read(MapSnapshot.file(dir, first), store);
+        }
+        long next = first;
+        for (long gen : logs) {
+            if (gen < first) continue;
+            records += MapLog.replay(MapLog.file(dir, gen), store);
+            next = gen + 1;
+        }
+        System.out.println("Recovered " + store.size() + " pairs from " +
+                pairs + " snapshot pairs and " + records + " log records in " +
+                (System.currentTimeMillis() - start) + " ms");
+
+        LoggedStore logged = new LoggedStore(store,
+                new MapLog(dir, next, syncMillis), dir);
+        if (snapshotSeconds > 0) {
+            ScheduledExecutorService timer =
+                    Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "MapSnapshot");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            timer.scheduleWithFixedDelay(logged::snapshot, snapshotSeconds,
+                    snapshotSeconds, TimeUnit.SECONDS);
+        }
+        return logged;
+    }
+
+    /** @return the sorted generations of the files in dir named prefix<gen> */
+    private static List<Long> generations(File dir, String prefix) {
+        List<Long> gens = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return gens;
+        for (String name : names) {
+            if (!name.startsWith(prefix)) continue;
+            try {
+                gens.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // a temporary file, ignore it
+            }
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    /**
+     * Roll the log, write a snapshot of the new generation and delete the
+     * files it makes obsolete.
+     */
+    public void snapshot() {
+        long gen = log.roll();
+        try {
+            MapSnapshot.write(MapSnapshot.file(dir, gen), store);
+        } catch (IOException e) {
+            System.err.println("LoggedStore: snapshot failed: " + e);
+            return;
+        }
+        for (long old : generations(dir, "log.")) {
+            if (old < gen) MapLog.file(dir, old).delete();
+        }
+        for (long old : generations(dir, "snapshot.")) {
+            if (old < gen) MapSnapshot.file(dir, old).delete();
+        }
+    }
+
+    private Object lockFor(ByteKey key) {
+        return locks[key.hashCode() & (LOCKS - 1)];
+    }
+
+    public boolean put(ByteKey key, byte[] buf, int valOff, int valLen) {
+        boolean existed;
+        long seq;
+        synchronized (lockFor(key)) {
+            existed = store.put(key, buf, valOff, valLen);
+            seq = log.append(MapLog.PUT, key, buf, valOff, valLen);
+        }
+        log.awaitDurable(seq);
+        return existed;
+    }
+
+    public int get(ByteKey key, ByteBuffer out) {
+        return store.get(key, out);
+    }
+
+    public boolean remove(ByteKey key) {
+        long seq;
+        synchronized (lockFor(key)) {
+            if (!store.remove(key)) return false;
+            seq = log.append(MapLog.REMOVE, key, null, 0, 0);
+        }
+        log.awaitDurable(seq);
+        return true;
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    public long memory() {
+        return store.memory();
+    }
+
+    public long evicted() {
+        return store.evicted();
+    }
+
+    public void forEach(BiConsumer<ByteKey, byte[]> action) {
+        store.forEach(action);
+    }
+}
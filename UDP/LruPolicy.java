@@ -0,0 +1,23 @@
+/**
+ * Least recently used eviction.
+ **/
+
+public class LruPolicy implements EvictionPolicy {
+    private final Queue queue = new Queue();
+
+    public void onInsert(Entry e) {
+        queue.addFirst(e);
+    }
+
+    public void onAccess(Entry e) {
+        queue.moveToFront(e);
+    }
+
+    public void onRemove(Entry e) {
+        queue.remove(e);
+    }
+
+    public Entry victim() {
+        return queue.last();
+    }
+}
@@ -1,14 +1,36 @@
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
- * usage: UdpEchoClient serverName port string
+ * usage: MapClient serverName port command [key] [value]
+ *        MapClient serverName port batch [window]
  *
- * Send a packet to the named server:port containing the given string.
- * Wait for reply packet and print its contents.
+ * Send a packet to the named server:port containing the given command.
+ * Wait for reply packet and print its contents. The request is resent
+ * when no reply comes back in time, see AsyncMapClient.
+ *
+ * In batch mode the requests are read from stdin, one put:key:value or
+ * get:key per line (the format of the kvPairs file). Consecutive puts are
+ * packed into mput datagrams and consecutive gets into mget datagrams, as
+ * many as fit in one request. Up to window datagrams (default 8) are kept
+ * in flight and the results are printed in input order, one line per
+ * request.
  **/
 
 public class MapClient {
+    //largest request the server accepts, see MapWorker.MAX_REQUEST
+    private static final int MAX_REQUEST = 1000;
+    //time to wait for a reply before resending, in milliseconds
+    private static final int RETRY_MS = 500;
+    //number of times a request is resent before giving up
+    private static final int RETRIES = 10;
+
     public static void main(String args[]) throws Exception {
 
         // get server address, port number and command to server, if they
@@ -17,6 +39,14 @@ public class MapClient {
                                                 InetAddress.getByName(args[0]);
         //port
         int port = (args.length <= 1) ? -1 : Integer.parseInt(args[1]);
+        InetSocketAddress server = new InetSocketAddress(serverAdr, port);
+
+        if (args.length > 2 && args[2].equals("batch")) {
+            int window = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+            batch(server, window);
+            return;
+        }
+
         //server command
         String command;
         if (args.length <= 2) {
@@ -31,22 +61,120 @@ public class MapClient {
             command = "";
         }
 
-        // open datagram socket
-        DatagramSocket sock = new DatagramSocket();
-        // build packet addressed to server containing server command
-        byte[] outBuf = command.getBytes("US-ASCII");
-        DatagramPacket outPkt = new DatagramPacket(outBuf,outBuf.length,
-                                                    serverAdr, port);
-        sock.send(outPkt);	// send packet to server
-
-        // create buffer and packet for reply, then receive it
-        byte[] inBuf = new byte[1000];
-        DatagramPacket inPkt = new DatagramPacket(inBuf,inBuf.length);
-        sock.receive(inPkt);	// wait for reply (this is blocking)
-
-        // print buffer contents and close socket
-        String reply = new String(inBuf,0,inPkt.getLength(),"US-ASCII");
-        System.out.println(reply);
-        sock.close();
+        // send the command and print the reply
+        try (AsyncMapClient client = new AsyncMapClient(server, 1, RETRY_MS,
+                RETRIES)) {
+            System.out.println(client.send(command).get());
+        } catch (ExecutionException e) {
+            System.out.println("Error: " + e.getCause().getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** A group of requests sent in one datagram. */
+    private static class Batch {
+        String command;                 // mput, mget or a single request
+        boolean multi;                  // true for mput and mget
+        List<String> entries = new ArrayList<>(); // entries not yet answered
+        StringBuilder results = new StringBuilder();
+
+        /** @return the request for the entries not yet answered */
+        String request() {
+            return multi ? command + ":" + String.join("\n", entries) :
+                    command;
+        }
+    }
+
+    /**
+     * Replay the requests read from stdin with up to window datagrams
+     * in flight.
+     */
+    private static void batch(InetSocketAddress server, int window)
+            throws IOException {
+        BufferedReader sysin = new BufferedReader(new InputStreamReader(
+                System.in, "US-ASCII"));
+        try (AsyncMapClient client = new AsyncMapClient(server, window,
+                RETRY_MS, RETRIES)) {
+            ArrayDeque<CompletableFuture<String>> results = new ArrayDeque<>();
+            String line = sysin.readLine();
+            while (line != null || !results.isEmpty()) {
+                if (line != null) {
+                    Batch b = new Batch();
+                    line = pack(b, line, sysin);
+                    results.add(execute(client, b));
+                }
+                // print what is done in input order, and do not read
+                // too far ahead of the replies
+                while (!results.isEmpty() && (results.peek().isDone() ||
+                        line == null || results.size() > 4 * window)) {
+                    System.out.print(results.poll().join());
+                }
+            }
+        } catch (CompletionException e) {
+            System.out.flush();
+            System.err.println("Error: " + e.getCause().getMessage());
+            System.exit(1);
+        }
+        System.out.flush();
+        sysin.close();
+    }
+
+    /**
+     * Send the entries of b, and send again those that did not fit in the
+     * reply until all are answered.
+     * @return the results of b, one line per entry
+     */
+    private static CompletableFuture<String> execute(AsyncMapClient client,
+                                                     Batch b) {
+        return client.send(b.request()).thenCompose(reply -> {
+            if (b.multi && reply.startsWith("multi:")) {
+                String[] lines = reply.split("\n", -1);
+                int n = Integer.parseInt(lines[0].substring(6));
+                for (int i = 1; i <= n; i++) {
+                    b.results.append(lines[i]).append('\n');
+                }
+                b.entries.subList(0, n).clear();
+            } else {
+                b.results.append(reply).append('\n');
+                b.entries.clear();
+            }
+            if (!b.entries.isEmpty()) return execute(client, b);
+            return CompletableFuture.completedFuture(b.results.toString());
+        });
+    }
+
+    /**
+     * Pack line and the lines after it of the same kind into b, until the
+     * datagram is full.
+     * @return the first line that was not packed, null at end of input
+     */
+    private static String pack(Batch b, String line, BufferedReader sysin)
+            throws IOException {
+        String kind = line.startsWith("put:") ? "mput" :
+                line.startsWith("get:") ? "mget" : null;
+        if (kind == null) {
+            // anything else is sent on its own
+            b.command = line;
+            b.entries.add(line);
+            return sysin.readLine();
+        }
+        b.command = kind;
+        b.multi = true;
+        int size = AsyncMapClient.ID_ROOM + 1 + kind.length();
+        while (line != null && line.startsWith(kind.substring(1) + ":")) {
+            String entry = line.substring(4);
+            if (kind.equals("mget") && entry.endsWith(":")) {
+                entry = entry.substring(0, entry.length() - 1);
+            }
+            // a full datagram ends here
+            if (!b.entries.isEmpty() &&
+                    size + 1 + entry.length() > MAX_REQUEST) {
+                break;
+            }
+            b.entries.add(entry);
+            size += 1 + entry.length();
+            line = sysin.readLine();
+        }
+        return line;
     }
-}
\ No newline at end of file
+}
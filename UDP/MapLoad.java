@@ -0,0 +1,220 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * usage: MapLoad serverName port [option=value ...]
+ *        MapLoad local [workers=N] [store=engine] [evict=policy]
+ *                [option=value ...]
+ *
+ * Load generator for MapServer. Requests are issued at a fixed rate over
+ * several AsyncMapClients, each with its own socket, and the latency of
+ * every request is recorded in a LatencyHistogram. The latency of a
+ * request is measured from the time it was due to be sent, so a server
+ * that falls behind is charged for the requests that queue up behind it.
+ * In the end the throughput and the latency percentiles are printed.
+ *
+ * local       starts a MapServer in this JVM on an ephemeral port, with
+ *             the workers, store and evict options of MapServer
+ * workload    is zipf (the default) for a synthetic workload, or a file of
+ *             put:key:value and get:key lines, such as the kvPairs file of
+ *             the TCP lab, which is replayed over and over
+ * keys        is the number of distinct keys of zipf (default 100000)
+ * skew        is the Zipf exponent of zipf (default 0.99)
+ * reads       is the fraction of gets of zipf (default 0.9)
+ * value       is the size of the values put by zipf (default 100)
+ * rate        is the target number of requests per second (default 10000),
+ *             0 sends as fast as the window allows
+ * duration    is the length of the run, in seconds (default 10)
+ * clients     is the number of sockets (default 16)
+ * window      is the number of requests in flight per socket (default 32)
+ * timeout     is the time before a request is resent, in ms (default 500)
+ * retries     is the number of times a request is resent (default 3)
+ **/
+
+public class MapLoad {
+    public static void main(String args[]) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: MapLoad serverName port [options]");
+            System.exit(1);
+        }
+
+        //where to send the load
+        InetSocketAddress server;
+        MapServer local = null;
+        int first;
+        if (args[0].equals("local")) {
+            String engine = "heap", evict = "lru";
+            int workers = 1;
+            for (String arg : args) {
+                if (arg.startsWith("workers=")) {
+                    workers = Integer.parseInt(arg.substring(8));
+                } else if (arg.startsWith("store=")) {
+                    engine = arg.substring(6);
+                } else if (arg.startsWith("evict=")) {
+                    evict = arg.substring(6);
+                }
+            }
+            local = new MapServer(0, workers,
+                    MapServer.newStore(engine, evict));
+            local.start();
+            server = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    local.getLocalPort());
+            System.out.println("Server running on port " + local.getLocalPort());
+            first = 1;
+        } else {
+            server = new InetSocketAddress(InetAddress.getByName(args[0]),
+                    Integer.parseInt(args[1]));
+            first = 2;
+        }
+
+        String workload = "zipf";
+        int keys = 100000, value = 100, clients = 16, window = 32, retries = 3;
+        double skew = 0.99, reads = 0.9;
+        long rate = 10000, duration = 10, timeout = 500;
+        for (String arg : Arrays.copyOfRange(args, first, args.length)) {
+            int eq = arg.indexOf('=');
+            String name = (eq < 0) ? arg : arg.substring(0, eq);
+            String v = arg.substring(eq + 1);
+            switch (name) {
+                case "workload": workload = v; break;
+                case "keys": keys = Integer.parseInt(v); break;
+                case "skew": skew = Double.parseDouble(v); break;
+                case "reads": reads = Double.parseDouble(v); break;
+                case "value": value = Integer.parseInt(v); break;
+                case "rate": rate = Long.parseLong(v); break;
+                case "duration": duration = Long.parseLong(v); break;
+                case "clients": clients = Integer.parseInt(v); break;
+                case "window": window = Integer.parseInt(v); break;
+                case "timeout": timeout = Long.parseLong(v); break;
+                case "retries": retries = Integer.parseInt(v); break;
+                case "workers": case "store": case "evict": break;
+                default:
+                    System.err.println("unknown option " + arg);
+                    System.exit(1);
+            }
+        }
+
+        Workload requests = workload.equals("zipf") ?
+                new ZipfWorkload(keys, skew, reads, value) :
+                new FileWorkload(workload);
+
+        List<AsyncMapClient> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            sockets.add(new AsyncMapClient(server, window, timeout, retries));
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongAdder errors = new LongAdder();
+        Semaphore inFlight = new Semaphore(clients * window);
+
+        // issue the requests, each at the time the rate says it is due
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long sent = 0;
+        while (true) {
+            long due = (rate > 0) ? start + sent * 1000000000L / rate :
+                    System.nanoTime();
+            if (due >= end) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            inFlight.acquire();
+            AsyncMapClient client = sockets.get((int) (sent % clients));
+            client.send(requests.next()).whenComplete((reply, e) -> {
+                histogram.record(System.nanoTime() - due);
+                if (e != null || reply.startsWith("Error")) errors.increment();
+                inFlight.release();
+            });
+            sent++;
+        }
+        long lastTimeout = timeout * (retries + 1) + 1000;
+        if (!inFlight.tryAcquire(clients * window, lastTimeout,
+                TimeUnit.MILLISECONDS)) {
+            System.err.println("MapLoad: some requests never completed");
+        }
+        long elapsed = System.nanoTime() - start;
+        for (AsyncMapClient client : sockets) client.close();
+        if (local != null) local.stop();
+
+        System.out.printf("requests %d  errors %d  elapsed %.2f s  " +
+                        "throughput %.0f ops/s%n", histogram.count(),
+                errors.sum(), elapsed / 1e9, histogram.count() * 1e9 / elapsed);
+        System.out.printf("latency us: mean %.1f  p50 %.1f  p90 %.1f  " +
+                        "p99 %.1f  p999 %.1f  max %.1f%n",
+                histogram.mean() / 1000, histogram.percentile(50) / 1000.0,
+                histogram.percentile(90) / 1000.0,
+                histogram.percentile(99) / 1000.0,
+                histogram.percentile(99.9) / 1000.0,
+                histogram.max() / 1000.0);
+    }
+
+    /** An endless source of requests, only used by the issuing thread. */
+    private interface Workload {
+        String next();
+    }
+
+    /** Replays the lines of a file. */
+    private static class FileWorkload implements Workload {
+        private final List<String> lines = new ArrayList<>();
+        private int next;
+
+        FileWorkload(String file) throws IOException {
+            for (String line : Files.readAllLines(Paths.get(file),
+                    StandardCharsets.ISO_8859_1)) {
+                if (line.startsWith("put:") || line.startsWith("get:")) {
+                    lines.add(line);
+                }
+            }
+            if (lines.isEmpty()) {
+                throw new IOException("no requests in " + file);
+            }
+        }
+
+        public String next() {
+            String line = lines.get(next);
+            next = (next + 1) % lines.size();
+            return line;
+        }
+    }
+
+    /**
+     * Gets and puts of keys key0..key(n-1), picked with a Zipf distribution
+     * so that key0 is the most popular.
+     */
+    private static class ZipfWorkload implements Workload {
+        private final double[] cdf;
+        private final double reads;
+        private final String value;
+        private final Random random = new Random(1);
+
+        ZipfWorkload(int keys, double skew, double reads, int size) {
+            cdf = new double[keys];
+            double sum = 0;
+            for (int i = 0; i < keys; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < keys; i++) cdf[i] /= sum;
+            this.reads = reads;
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'v');
+            value = new String(chars);
+        }
+
+        public String next() {
+            int i = Arrays.binarySearch(cdf, random.nextDouble());
+            String key = "key" + ((i < 0) ? Math.min(-i - 1, cdf.length - 1) : i);
+            return (random.nextDouble() < reads) ? "get:" + key :
+                    "put:" + key + ":" + value;
+        }
+    }
+}
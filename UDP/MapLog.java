@@ -0,0 +1,252 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the mutations of a MapStore.
+ *
+ * Workers serialize their records into a shared buffer; a single writer
+ * thread swaps it with a second buffer and hands everything that piled up
+ * to the FileChannel in one write (group commit). How often the file is
+ * forced to disk is set by syncMillis:
+ *  0   force after every write; callers of awaitDurable wait for it
+ *  n   force at most every n milliseconds, callers do not wait
+ *  -1  never force, leave it to the operating system
+ *
+ * Every record is [crc][type][keyLen][valLen][key][value] where crc is the
+ * CRC32C of everything after it; replay stops at the first torn record.
+ * The log is split in generations, file log.<gen>, see roll().
+ **/
+
+public class MapLog implements Closeable {
+    public static final byte PUT = 'P';
+    public static final byte REMOVE = 'R';
+
+    private static final int HEADER = 13;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File dir;
+    private final long syncMillis;
+    private final CRC32C crc = new CRC32C();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long gen;               // generation of the open file
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long appended;          // sequence number of the last record
+    private long written;           // last record handed to the channel
+    private long durable;           // last record forced to disk
+    private long lastSync;          // time of the last force
+    private long rollTo = -1;       // generation requested by roll()
+    private boolean closed;
+
+    /**
+     * Open log.<gen> in dir for appending and start the writer thread.
+     */
+    public MapLog(File dir, long gen, long syncMillis) throws IOException {
+        this.dir = dir;
+        this.gen = gen;
+        this.syncMillis = syncMillis;
+        this.channel = open(gen);
+        this.lastSync = System.currentTimeMillis();
+        writer = new Thread(this::writeLoop, "MapLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** @return the file holding generation gen of the log in dir */
+    public static File file(File dir, long gen) {
+        return new File(dir, "log." + gen);
+    }
+
+    private FileChannel open(long gen) throws IOException {
+        return FileChannel.open(file(dir, gen).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Append a record, value is ignored for REMOVE.
+     * @return the sequence number of the record, for awaitDurable
+     */
+    public synchronized long append(byte type, ByteKey key, byte[] buf,
+                                    int valOff, int valLen) {
+        if (type == REMOVE) valLen = 0;
+        int size = HEADER + key.length() + valLen;
+        // wait for the writer to take the buffer if it is full
+        while (active.remaining() < size && !closed) {
+            waitUninterruptibly(0);
+        }
+        crc.reset();
+        crc.update(type);
+        crc.update(key.array(), key.offset(), key.length());
+        if (valLen > 0) crc.update(buf, valOff, valLen);
+        active.putInt((int) crc.getValue()).put(type)
+                .putInt(key.length()).putInt(valLen)
+                .put(key.array(), key.offset(), key.length());
+        if (valLen > 0) active.put(buf, valOff, valLen);
+        notifyAll();
+        return ++appended;
+    }
+
+    /**
+     * Wait until record seq is on disk. Returns at once unless the log
+     * forces after every write (syncMillis == 0).
+     */
+    public synchronized void awaitDurable(long seq) {
+        if (syncMillis != 0) return;
+        while (durable < seq && !closed) {
+            waitUninterruptibly(0);
+        }
+    }
+
+    /**
+     * Close the current generation, after forcing it, and continue in a
+     * new one. Records appended before the call are in the old file.
+     * @return the new generation
+     */
+    public synchronized long roll() {
+        rollTo = gen + 1;
+        notifyAll();
+        while (gen < rollTo && !closed) {
+            waitUninterruptibly(0);
+        }
+        return gen;
+    }
+
+    /** Write out and force whatever is buffered, then stop the writer. */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long seq;
+            boolean roll, sync;
+            synchronized (this) {
+                while (active.position() == 0 && rollTo < 0 && !closed &&
+                        !syncDue()) {
+                    // sleep until notified, or until a periodic force is due
+                    long wait = 0;
+                    if (written > durable && syncMillis > 0) {
+                        wait = Math.max(1, lastSync + syncMillis -
+                                System.currentTimeMillis());
+                    }
+                    waitUninterruptibly(wait);
+                }
+                ByteBuffer t = active; active = flushing; flushing = t;
+                seq = appended;
+                roll = rollTo >= 0;
+                sync = roll || closed || syncMillis == 0 ||
+                        (syncMillis > 0 && System.currentTimeMillis() -
+                                lastSync >= syncMillis);
+                // appenders may be waiting for space
+                notifyAll();
+            }
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining()) channel.write(flushing);
+                flushing.clear();
+                if (sync) channel.force(false);
+                if (roll) {
+                    channel.close();
+                    channel = open(gen + 1);
+                }
+            } catch (IOException e) {
+                System.err.println("MapLog: unable to write " +
+                        file(dir, gen) + ": " + e);
+                System.exit(1);
+            }
+            synchronized (this) {
+                written = seq;
+                if (sync) {
+                    durable = seq;
+                    lastSync = System.currentTimeMillis();
+                }
+                if (roll) {
+                    gen++;
+                    rollTo = -1;
+                }
+                notifyAll();
+                if (closed && active.position() == 0) return;
+            }
+        }
+    }
+
+    /** @return true if written records are waiting for a periodic force */
+    private boolean syncDue() {
+        return syncMillis > 0 && written > durable &&
+                System.currentTimeMillis() - lastSync >= syncMillis;
+    }
+
+    private void waitUninterruptibly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply the records of a log file to store. A torn record at the end,
+     * left by a crash, is cut off the file.
+     * @return the number of records applied
+     */
+    public static long replay(File file, MapStore store) throws IOException {
+        long count = 0;
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    ch.size());
+            CRC32C crc = new CRC32C();
+            ByteKey key = new ByteKey();
+            byte[] bytes = new byte[MapWorker.MAX_REQUEST];
+            int valid = 0;
+            while (map.remaining() >= HEADER) {
+                int sum = map.getInt();
+                byte type = map.get();
+                int keyLen = map.getInt();
+                int valLen = map.getInt();
+                if (keyLen < 0 || valLen < 0 ||
+                        keyLen + valLen > map.remaining()) {
+                    break;
+                }
+                if (bytes.length < keyLen + valLen) {
+                    bytes = new byte[keyLen + valLen];
+                }
+                map.get(bytes, 0, keyLen + valLen);
+                crc.reset();
+                crc.update(type);
+                crc.update(bytes, 0, keyLen + valLen);
+                if ((int) crc.getValue() != sum) break;
+
+                key.set(bytes, 0, keyLen);
+                if (type == PUT) {
+                    store.put(key, bytes, keyLen, valLen);
+                } else {
+                    store.remove(key);
+                }
+                valid = map.position();
+                count++;
+            }
+            if (valid < ch.size()) {
+                System.err.println("MapLog: dropping torn tail of " + file);
+                ch.truncate(valid);
+            }
+        }
+        return count;
+    }
+}
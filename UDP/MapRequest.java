@@ -0,0 +1,146 @@
+/**
+ * Parser for MapServer requests. Scans a datagram in place and records
+ * the command and the offsets of the key and value, nothing is copied.
+ * The grammar is the one the server always used with split(":", 3):
+ * put:key:value, get:key[:...] and remove:key[:...]; the value of a put
+ * is everything after the second ':' and may itself contain ':'.
+ *
+ * Batched requests carry one entry per line after the command:
+ * mput:key1:value1\nkey2:value2... and mget:key1\nkey2...; their entries
+ * are walked with nextEntry().
+ *
+ * stats (or stats:) asks for the counters of the server, see MapStats.
+ *
+ * Any request may start with a request id, #id:, which the server echoes
+ * at the start of the reply so clients can match replies to requests.
+ * A MapRequest is reused for every packet a worker receives.
+ **/
+
+public class MapRequest {
+    public static final int INVALID = 0;
+    public static final int PUT = 1;
+    public static final int GET = 2;
+    public static final int REMOVE = 3;
+    public static final int MPUT = 4;
+    public static final int MGET = 5;
+    public static final int STATS = 6;
+
+    private static final byte[] PUT_NAME = {'p', 'u', 't'};
+    private static final byte[] GET_NAME = {'g', 'e', 't'};
+    private static final byte[] REMOVE_NAME = {'r', 'e', 'm', 'o', 'v', 'e'};
+    private static final byte[] MPUT_NAME = {'m', 'p', 'u', 't'};
+    private static final byte[] MGET_NAME = {'m', 'g', 'e', 't'};
+    private static final byte[] STATS_NAME = {'s', 't', 'a', 't', 's'};
+
+    public int command;         // one of the constants above
+    public final ByteKey key = new ByteKey(); // probe into the datagram
+    public int valOff;          // offset of the value of a put
+    public int valLen;          // length of the value of a put, -1 if none
+    public int idLen;           // length of the request id prefix, 0 if none
+    public int entryOff;        // offset of the current batch entry
+    public int entryLen;        // length of the current batch entry
+
+    private byte[] buf;
+    private int length;
+    private int cursor;         // start of the next batch entry
+
+    /**
+     * Parse the first length bytes of buf.
+     * @return the command, INVALID when the request is malformed
+     */
+    public int parse(byte[] buf, int length) {
+        this.buf = buf;
+        this.length = length;
+        command = INVALID;
+        valOff = valLen = 0;
+        idLen = 0;
+
+        // optional request id, the prefix is kept verbatim for the reply
+        int start = 0;
+        if (length > 0 && buf[0] == '#') {
+            int colon = indexOf(buf, 1, length, ':');
+            if (colon < 0) return command;
+            idLen = colon + 1;
+            start = idLen;
+        }
+
+        int first = indexOf(buf, start, length, ':');
+        if (matches(STATS_NAME, buf, start, (first < 0) ? length : first)) {
+            command = STATS;
+            return command;
+        }
+        if (first < 0) return command;
+        int keyOff = first + 1;
+        int second = indexOf(buf, keyOff, length, ':');
+        int keyEnd = (second < 0) ? length : second;
+
+        if (matches(PUT_NAME, buf, start, first)) {
+            // a put needs all three parts
+            if (second < 0) return command;
+            command = PUT;
+            valOff = second + 1;
+            valLen = length - valOff;
+        } else if (matches(GET_NAME, buf, start, first)) {
+            command = GET;
+        } else if (matches(REMOVE_NAME, buf, start, first)) {
+            command = REMOVE;
+        } else if (matches(MPUT_NAME, buf, start, first)) {
+            command = MPUT;
+            cursor = keyOff;
+            return command;
+        } else if (matches(MGET_NAME, buf, start, first)) {
+            command = MGET;
+            cursor = keyOff;
+            return command;
+        } else {
+            return command;
+        }
+        key.set(buf, keyOff, keyEnd - keyOff);
+        return command;
+    }
+
+    /**
+     * Advance to the next entry of an mput or mget request and point key
+     * (and the value offsets, for mput) at it. An mput entry without ':'
+     * is reported with valLen set to -1.
+     * @return false when there are no more entries
+     */
+    public boolean nextEntry() {
+        if (cursor >= length) return false;
+        int end = indexOf(buf, cursor, length, '\n');
+        if (end < 0) end = length;
+        entryOff = cursor;
+        entryLen = end - cursor;
+        cursor = end + 1;
+
+        int keyEnd = end;
+        valLen = -1;
+        if (command == MPUT) {
+            int colon = indexOf(buf, entryOff, end, ':');
+            if (colon >= 0) {
+                keyEnd = colon;
+                valOff = colon + 1;
+                valLen = end - valOff;
+            }
+        }
+        key.set(buf, entryOff, keyEnd - entryOff);
+        return true;
+    }
+
+    /** @return index of the first b in buf[from, to) or -1 */
+    private static int indexOf(byte[] buf, int from, int to, char b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /** @return true if buf[from, to) holds exactly name */
+    private static boolean matches(byte[] name, byte[] buf, int from, int to) {
+        if (to - from != name.length) return false;
+        for (int i = 0; i < name.length; i++) {
+            if (buf[from + i] != name[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * usage: MapRequestBench [ corpus ] [ iterations ]
+ *
+ * Compare the cost of parsing and executing MapServer requests with the
+ * old split-based path (new String over the whole 1000-byte buffer,
+ * split(":", 3), HashMap of Strings) and with MapRequest + HeapStore.
+ *
+ * corpus      is a file of put:key:value lines, by default the kvPairs
+ *             file of the TCP lab (../UDPwithServer/kvPairs); every line
+ *             is replayed as a put and then as a get
+ * iterations  is the number of measured passes over the corpus (default 10),
+ *             preceded by the same number of warmup passes
+ *
+ * For each path the time and the heap allocation per request are printed.
+ **/
+
+public class MapRequestBench {
+    public static void main(String args[]) throws Exception {
+        String corpus = (args.length > 0) ? args[0] : "../UDPwithServer/kvPairs";
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        // build one datagram buffer per request, padded like the old server's
+        List<byte[]> requests = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(corpus),
+                StandardCharsets.ISO_8859_1)) {
+            String[] parts = line.split(":", 3);
+            if (parts.length < 3 || !parts[0].equals("put")) continue;
+            addRequest(requests, lengths, line);
+            addRequest(requests, lengths, "get:" + parts[1]);
+        }
+        System.out.println(requests.size() + " requests from " + corpus);
+
+        run("split", requests, lengths, iterations, new SplitPath());
+        run("bytes", requests, lengths, iterations, new BytePath());
+    }
+
+    private static void addRequest(List<byte[]> requests, List<Integer> lengths,
+                                   String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] buf = new byte[MapWorker.MAX_REQUEST];
+        int length = Math.min(bytes.length, buf.length);
+        System.arraycopy(bytes, 0, buf, 0, length);
+        requests.add(buf);
+        lengths.add(length);
+    }
+
+    /** One way of executing a request, returns something to keep it live. */
+    private interface Path {
+        int execute(byte[] buf, int length);
+    }
+
+    /** The request path MapServer used before MapRequest. */
+    private static class SplitPath implements Path {
+        private final HashMap<String, String> map = new HashMap<>();
+
+        public int execute(byte[] buf, int length) {
+            String message = new String(buf);
+            String[] splitedMessage = message.split(":", 3);
+            String command = splitedMessage[0];
+            if (command.equals("put") && splitedMessage.length > 2) {
+                return map.put(splitedMessage[1], splitedMessage[2]) == null ?
+                        1 : 2;
+            } else if (command.equals("get") && splitedMessage.length > 1) {
+                String value = map.get(splitedMessage[1]);
+                return (value == null) ? 0 : value.length();
+            }
+            return -1;
+        }
+    }
+
+    /** The MapRequest path. */
+    private static class BytePath implements Path {
+        private final MapRequest request = new MapRequest();
+        private final HeapStore store = new HeapStore();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(
+                MapWorker.MAX_REPLY);
+
+        public int execute(byte[] buf, int length) {
+            switch (request.parse(buf, length)) {
+                case MapRequest.PUT:
+                    return store.put(request.key, buf, request.valOff,
+                            request.valLen) ? 2 : 1;
+                case MapRequest.GET:
+                    out.clear();
+                    return Math.max(0, store.get(request.key, out));
+                default:
+                    return -1;
+            }
+        }
+    }
+
+    private static void run(String name, List<byte[]> requests,
+                            List<Integer> lengths, int iterations, Path path) {
+        int n = requests.size();
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < n; j++) {
+                sink += path.execute(requests.get(j), lengths.get(j));
+            }
+        }
+        long alloc0 = allocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < n; j++) {
+                sink += path.execute(requests.get(j), lengths.get(j));
+            }
+        }
+        long elapsed = System.nanoTime() - t0;
+        long alloc = allocatedBytes() - alloc0;
+        long ops = (long) n * iterations;
+        System.out.printf("%-6s %8.1f ns/op %10.1f bytes/op  (%d)%n", name,
+                (double) elapsed / ops, (double) alloc / ops, sink);
+    }
+
+    /** @return bytes allocated so far by this thread, -1 if unsupported */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
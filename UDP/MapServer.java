@@ -1,114 +1,211 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * usage: MapServer [port] [workers=N]
+ *                  [store=heap|offheap[:MB]|bounded[:MB] [evict=policy]]
+ *                  [wal=dir [sync=ms] [snapshot=s]]
+ *
+ * UDP key/value server. Every datagram holds one ASCII command
+ * (put:key:value, get:key or remove:key) and is answered with one datagram.
+ * The stats command answers the counters of the server, which are also
+ * exported over JMX as MapServer:type=MapStats,port=<port>.
+ *
+ * port     is the UDP port to listen on (default 30123)
+ * workers  is the number of threads serving requests (default 1); when the
+ *          platform supports SO_REUSEPORT every worker gets its own
+ *          DatagramChannel bound to the port, so the kernel spreads the
+ *          datagrams over the workers; otherwise all workers share a
+ *          single channel
+ * store    selects the storage engine: heap (the default) keeps the pairs
+ *          in a ConcurrentHashMap, offheap keeps them in direct memory
+ *          outside the Java heap, up to MB megabytes (default 1024),
+ *          bounded keeps them on the heap within a budget of MB megabytes
+ *          (default 256) and evicts pairs to stay within it
+ * evict    is the eviction policy of the bounded store: lru (the default),
+ *          clock or tinylfu (W-TinyLFU)
+ * wal      makes the store persistent: mutations are appended to a log in
+ *          dir and the store is recovered from it on startup
+ * sync     is how often the log is forced to disk, in milliseconds; with 0
+ *          (the default) a put or remove is only answered once it is on
+ *          disk, -1 leaves flushing to the operating system
+ * snapshot is the time between snapshots of the store, in seconds
+ *          (default 60, 0 for none); a snapshot lets the older logs go
+ **/
 
 public class MapServer {
-    public static void main(String args[]) throws Exception {
+    public static final int DEFAULT_PORT = 30123;
 
-        //get port number or set it to default
-        //check if port number given is valid
-        int port;
-        if(args.length > 0) {
-            int argumentPort = Integer.parseInt(args[0]);
-            if (argumentPort > 0 && argumentPort < 65536) {
-                port = argumentPort;
+    private final int port;
+    private final int workers;
+    private final MapStore store;
+    private final MapStats stats;
+    private ObjectName name;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * Create a server, nothing is bound until start is called.
+     * @param port is the UDP port to bind, 0 picks an ephemeral port
+     * @param workers is the number of worker threads
+     * @param store is the store that holds the pairs
+     */
+    public MapServer(int port, int workers, MapStore store) {
+        this.port = port;
+        this.workers = Math.max(1, workers);
+        this.store = store;
+        this.stats = new MapStats(store);
+    }
+
+    /**
+     * Bind the channels and start the worker threads.
+     */
+    public void start() throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = workers > 1 && first.supportedOptions()
+                .contains(StandardSocketOptions.SO_REUSEPORT);
+        int boundPort = port;
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel channel;
+            if (i == 0 || reusePort) {
+                channel = (i == 0) ? first : DatagramChannel.open();
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(boundPort));
+                //the first bind resolves an ephemeral port, the others join it
+                boundPort = ((InetSocketAddress) channel.getLocalAddress())
+                        .getPort();
+                channels.add(channel);
             } else {
-                port = 30123;
+                channel = channels.get(0);
             }
-        } else {
-            port = 30123;
+            Thread t = new Thread(new MapWorker(channel, store, stats),
+                    "MapWorker-" + i);
+            t.setDaemon(true);
+            threads.add(t);
         }
-        // open a UDP socket on port given
-        DatagramSocket sock = new DatagramSocket(port);
-        System.out.println("Server running on port " + sock.getLocalPort());
-        //init hash map, out packet
-        HashMap<String, String> map = new HashMap<>();
-        DatagramPacket outPkt;
-
-        while (true) {
-            // create a DatagramPacket for receiving packets
-            byte[] buf = new byte[1000];
-            DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-            // response array to construct the response to client
-            byte[] response = new byte[1000];
+        for (Thread t : threads) t.start();
 
-            sock.receive(pkt); // wait for incoming packet (blocking)
-
-            //get clients port and address
-            InetAddress clientAdd = pkt.getAddress();
-            int clientPort = pkt.getPort();
-
-            //take the packets information and process it
-            String message = new String(buf);
-            String [] splitedMessage = message.split(":", 3);
-            String command = splitedMessage[0]; String key; String value;
+        try {
+            name = new ObjectName("MapServer:type=MapStats,port=" + boundPort);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                    name);
+        } catch (JMException e) {
+            System.err.println("MapServer: no JMX stats: " + e);
+            name = null;
+        }
+    }
 
-            // PUT command
-            if(command.equals("put") && splitedMessage.length > 2) {
-                key = splitedMessage[1];
-                value = splitedMessage[2];
+    /**
+     * Close all channels, which makes the workers exit.
+     */
+    public void stop() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                //already gone
+            }
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //nothing left to do with this channel
+            }
+        }
+    }
 
-                //create response
-                if(map.containsKey(key)){
-                    response = ("updated:" + key).
-                            getBytes("US-ASCII");
-                } else {
-                    response = "Ok".getBytes("US-ASCII");
-                }
+    /**
+     * @return the counters of the server
+     */
+    public MapStats getStats() {
+        return stats;
+    }
 
-                //insert the key and value to the map, if needed this will
-                // update and existing key
-                map.put(key, value);
-                //create response packet
-                outPkt = new DatagramPacket(response,response.length,
-                        clientAdd, clientPort);
-                //send response
-                sock.send(outPkt);
-            //GET command
-            } else if (command.equals("get") && splitedMessage.length > 1){
-                key = splitedMessage[1];
+    /**
+     * @return the port the server is bound to
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channels.get(0).getLocalAddress())
+                .getPort();
+    }
 
-                //create response to client
-                if(map.containsKey(key)){
-                    response = ("ok:" + map.get(key)).
-                            getBytes("US-ASCII");
-                } else {
-                    response = "no match".getBytes("US-ASCII");
-                }
+    /**
+     * Create the store selected by the store= and evict= options.
+     * @param engine is heap, offheap[:MB] or bounded[:MB]
+     * @param evict is the eviction policy of a bounded store
+     */
+    public static MapStore newStore(String engine, String evict) {
+        if (engine.equals("heap")) {
+            return new HeapStore();
+        } else if (engine.startsWith("offheap")) {
+            long megabytes = engine.startsWith("offheap:") ?
+                    Long.parseLong(engine.substring(8)) : 1024;
+            return new OffHeapStore(megabytes << 20);
+        } else if (engine.startsWith("bounded")) {
+            long megabytes = engine.startsWith("bounded:") ?
+                    Long.parseLong(engine.substring(8)) : 256;
+            return new BoundedStore(megabytes << 20, evict);
+        }
+        throw new IllegalArgumentException("unknown store " + engine);
+    }
 
-                //create response packet
-                outPkt = new DatagramPacket(response,response.length,
-                        clientAdd, clientPort);
-                //send response
-                sock.send(outPkt);
-            // REMOVE command
-            } else if (command.equals("remove") && splitedMessage.length > 1){
-                key = splitedMessage[1];
+    public static void main(String args[]) throws Exception {
 
-                //create response to client
-                if(map.containsKey(key)){
-                    response = "Ok".getBytes("US-ASCII");
-                    //remove key from map if key is in map
-                    map.remove(key);
-                } else {
-                    response = "no match".getBytes("US-ASCII");
-                }
-                //create response packet
-                outPkt = new DatagramPacket(response,response.length,
-                        clientAdd, clientPort);
-                //send response
-                sock.send(outPkt);
-            //if command is NOT VALID
+        //get port number or set it to default
+        //check if port number given is valid
+        int port = DEFAULT_PORT;
+        int workers = 1;
+        String engine = "heap";
+        String evict = "lru";
+        String wal = null;
+        long sync = 0, snapshot = 60;
+        for (String arg : args) {
+            if (arg.startsWith("workers=")) {
+                workers = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("store=")) {
+                engine = arg.substring(6);
+            } else if (arg.startsWith("evict=")) {
+                evict = arg.substring(6);
+            } else if (arg.startsWith("wal=")) {
+                wal = arg.substring(4);
+            } else if (arg.startsWith("sync=")) {
+                sync = Long.parseLong(arg.substring(5));
+            } else if (arg.startsWith("snapshot=")) {
+                snapshot = Long.parseLong(arg.substring(9));
             } else {
-                String payload = new String(pkt.getData(), 0, pkt.getLength());
-                response = ("Error: unrecognizable input: {" + payload + "}").
-                        getBytes("US-ASCII");
-                //create response packet
-                outPkt = new DatagramPacket(response,response.length,
-                        clientAdd, clientPort);
-                //send response
-                sock.send(outPkt);
+                int argumentPort = Integer.parseInt(arg);
+                if (argumentPort > 0 && argumentPort < 65536) {
+                    port = argumentPort;
+                }
             }
         }
+
+        MapStore store;
+        try {
+            store = newStore(engine, evict);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (wal != null) {
+            store = LoggedStore.open(new File(wal), store, sync, snapshot);
+        }
+
+        MapServer server = new MapServer(port, workers, store);
+        server.start();
+        System.out.println("Server running on port " + server.getLocalPort());
+
+        //the workers are daemons, keep the process alive while they run
+        for (Thread t : server.threads) t.join();
     }
-}
\ No newline at end of file
+}
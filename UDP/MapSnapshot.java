@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact snapshot of a MapStore, written and read through memory-mapped
+ * files. The file starts with MAGIC, followed by [keyLen][valLen][key][value]
+ * for every pair and a keyLen of -1 as end marker. A snapshot is written
+ * to a temporary file and renamed, so a snapshot file is always complete.
+ **/
+
+public class MapSnapshot {
+    private static final long MAGIC = 0x4d4150534e415031L; // "MAPSNAP1"
+    //size of the region mapped at a time while writing
+    private static final long WINDOW = 64L << 20;
+
+    /** @return the file holding the snapshot of generation gen in dir */
+    public static File file(File dir, long gen) {
+        return new File(dir, "snapshot." + gen);
+    }
+
+    /**
+     * Write every pair of store to file.
+     * @return the number of pairs written
+     */
+    public static long write(File file, MapStore store) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        long[] count = {0};
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer w = new Writer(ch);
+            w.reserve(8).putLong(MAGIC);
+            store.forEach((key, value) -> {
+                try {
+                    w.reserve(8 + key.length() + value.length)
+                            .putInt(key.length()).putInt(value.length)
+                            .put(key.array(), key.offset(), key.length())
+                            .put(value);
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            w.reserve(4).putInt(-1);
+            long end = w.position();
+            w.map.force();
+            w.map = null;
+            ch.truncate(end);
+            ch.force(true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /** Maps successive windows of the file as the snapshot grows. */
+    private static class Writer {
+        private final FileChannel ch;
+        private MappedByteBuffer map;
+        private long base;              // file position of map
+
+        Writer(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        /** @return the mapped buffer, with room for n more bytes */
+        MappedByteBuffer reserve(int n) throws IOException {
+            if (map == null || map.remaining() < n) {
+                if (map != null) {
+                    base += map.position();
+                    map.force();
+                }
+                map = ch.map(FileChannel.MapMode.READ_WRITE, base,
+                        Math.max(WINDOW, n));
+            }
+            return map;
+        }
+
+        long position() {
+            return base + map.position();
+        }
+    }
+
+    /**
+     * Load the pairs of a snapshot file into store.
+     * @return the number of pairs loaded
+     */
+    public static long read(File file, MapStore store) throws IOException {
+        long count = 0;
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            ByteKey key = new ByteKey();
+            byte[] bytes = new byte[MapWorker.MAX_REQUEST];
+            long base = 0;
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(ch.size(), Integer.MAX_VALUE));
+            if (map.getLong() != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            while (true) {
+                // remap when the next entry header is not in the window
+                if (map.remaining() < 8) {
+                    base += map.position();
+                    map = ch.map(FileChannel.MapMode.READ_ONLY, base,
+                            Math.min(ch.size() - base, Integer.MAX_VALUE));
+                }
+                int keyLen = map.getInt();
+                if (keyLen < 0) break;
+                int valLen = map.getInt();
+                if (map.remaining() < keyLen + valLen) {
+                    base += map.position();
+                    map = ch.map(FileChannel.MapMode.READ_ONLY, base,
+                            Math.min(ch.size() - base, Integer.MAX_VALUE));
+                }
+                if (bytes.length < keyLen + valLen) {
+                    bytes = new byte[keyLen + valLen];
+                }
+                map.get(bytes, 0, keyLen + valLen);
+                store.put(key.set(bytes, 0, keyLen), bytes, keyLen, valLen);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a MapServer, shared by its workers: requests by command,
+ * hits and misses of gets, bytes received and sent, and a histogram of
+ * the time taken to handle a request over the last minute. The minute is
+ * kept as SLOTS histograms of SLOT_SECONDS each, the oldest is cleared
+ * and reused as time moves on.
+ *
+ * The counters are answered to the stats command and exported over JMX,
+ * see MapStatsMBean.
+ **/
+
+public class MapStats implements MapStatsMBean {
+    private static final int SLOTS = 6;
+    private static final long SLOT_SECONDS = 10;
+    private static final long SLOT_NANOS = SLOT_SECONDS * 1000000000L;
+
+    private final MapStore store;
+    // indexed by the command constants of MapRequest
+    private final LongAdder[] requests = new LongAdder[MapRequest.STATS + 1];
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram[] latency = new LatencyHistogram[SLOTS];
+    private final AtomicLongArray epochs = new AtomicLongArray(SLOTS);
+
+    public MapStats(MapStore store) {
+        this.store = store;
+        for (int i = 0; i < requests.length; i++) requests[i] = new LongAdder();
+        for (int i = 0; i < SLOTS; i++) latency[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Count a handled request.
+     * @param command is the command of the request, see MapRequest
+     * @param in is the size of the request datagram
+     * @param out is the size of the reply datagram
+     * @param start is the System.nanoTime() at which handling started
+     */
+    public void request(int command, int in, int out, long start) {
+        long now = System.nanoTime();
+        requests[command].increment();
+        bytesIn.add(in);
+        bytesOut.add(out);
+        slot(now).record(now - start);
+    }
+
+    /** Count a get or mget entry that found its key. */
+    public void hit() {
+        hits.increment();
+    }
+
+    /** Count a get or mget entry that did not find its key. */
+    public void miss() {
+        misses.increment();
+    }
+
+    /** Count a request the store failed to execute. */
+    public void error() {
+        errors.increment();
+    }
+
+    /** @return the histogram of the slot holding time now */
+    private LatencyHistogram slot(long now) {
+        long epoch = Math.floorDiv(now, SLOT_NANOS);
+        int i = (int) Math.floorMod(epoch, (long) SLOTS);
+        if (epochs.get(i) != epoch) {
+            synchronized (latency[i]) {
+                if (epochs.get(i) != epoch) {
+                    latency[i].reset();
+                    epochs.set(i, epoch);
+                }
+            }
+        }
+        return latency[i];
+    }
+
+    /** @return the latencies recorded over the last SLOTS slots */
+    private LatencyHistogram recent() {
+        long epoch = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        LatencyHistogram sum = new LatencyHistogram();
+        for (int i = 0; i < SLOTS; i++) {
+            if (epoch - epochs.get(i) < SLOTS) sum.add(latency[i]);
+        }
+        return sum;
+    }
+
+    /** @return the counters as name=value lines, for the stats command */
+    public String format() {
+        LatencyHistogram recent = recent();
+        return "puts=" + getPuts() +
+                "\ngets=" + getGets() +
+                "\nremoves=" + getRemoves() +
+                "\nmputs=" + getMputs() +
+                "\nmgets=" + getMgets() +
+                "\nstats=" + getStats() +
+                "\ninvalid=" + getInvalid() +
+                "\nerrors=" + getErrors() +
+                "\nhits=" + getHits() +
+                "\nmisses=" + getMisses() +
+                "\nhitRatio=" + String.format("%.4f", getHitRatio()) +
+                "\nbytesIn=" + getBytesIn() +
+                "\nbytesOut=" + getBytesOut() +
+                "\nsize=" + getSize() +
+                "\nmemory=" + getMemory() +
+                "\nevicted=" + getEvicted() +
+                "\nlatencyCount=" + recent.count() +
+                "\nlatencyMeanUs=" + micros(recent.mean()) +
+                "\nlatencyP50Us=" + micros(recent.percentile(50)) +
+                "\nlatencyP90Us=" + micros(recent.percentile(90)) +
+                "\nlatencyP99Us=" + micros(recent.percentile(99)) +
+                "\nlatencyP999Us=" + micros(recent.percentile(99.9)) +
+                "\nlatencyMaxUs=" + micros(recent.max());
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1f", nanos / 1000);
+    }
+
+    public long getPuts() {
+        return requests[MapRequest.PUT].sum();
+    }
+
+    public long getGets() {
+        return requests[MapRequest.GET].sum();
+    }
+
+    public long getRemoves() {
+        return requests[MapRequest.REMOVE].sum();
+    }
+
+    public long getMputs() {
+        return requests[MapRequest.MPUT].sum();
+    }
+
+    public long getMgets() {
+        return requests[MapRequest.MGET].sum();
+    }
+
+    public long getStats() {
+        return requests[MapRequest.STATS].sum();
+    }
+
+    public long getInvalid() {
+        return requests[MapRequest.INVALID].sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum(), lookups = h + misses.sum();
+        return (lookups == 0) ? 0 : (double) h / lookups;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public int getSize() {
+        return store.size();
+    }
+
+    public long getMemory() {
+        return store.memory();
+    }
+
+    public long getEvicted() {
+        return store.evicted();
+    }
+
+    public double getLatencyMean() {
+        return recent().mean() / 1000;
+    }
+
+    public double getLatencyP50() {
+        return recent().percentile(50) / 1000.0;
+    }
+
+    public double getLatencyP99() {
+        return recent().percentile(99) / 1000.0;
+    }
+
+    public double getLatencyP999() {
+        return recent().percentile(99.9) / 1000.0;
+    }
+
+    public double getLatencyMax() {
+        return recent().max() / 1000.0;
+    }
+}
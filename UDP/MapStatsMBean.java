@@ -0,0 +1,30 @@
+/**
+ * JMX view of MapStats, registered by MapServer as
+ * MapServer:type=MapStats,port=<port>.
+ **/
+
+public interface MapStatsMBean {
+    long getPuts();
+    long getGets();
+    long getRemoves();
+    long getMputs();
+    long getMgets();
+    long getStats();
+    long getInvalid();
+    long getErrors();
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getBytesIn();
+    long getBytesOut();
+    int getSize();
+    long getMemory();
+    /** Pairs dropped by a bounded store, 0 for the other stores. */
+    long getEvicted();
+    /** The latency percentiles cover the last minute, in microseconds. */
+    double getLatencyMean();
+    double getLatencyP50();
+    double getLatencyP99();
+    double getLatencyP999();
+    double getLatencyMax();
+}
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Storage engine behind MapServer. Keys handed in may be probes pointing
+ * into a receive buffer, an implementation copies whatever it keeps.
+ * Implementations must be safe for use by several workers at once.
+ **/
+
+public interface MapStore {
+    /**
+     * Insert or update a pair, the value is buf[valOff, valOff+valLen).
+     * @return true if the key was already present
+     */
+    boolean put(ByteKey key, byte[] buf, int valOff, int valLen);
+
+    /**
+     * Copy the value stored for key into out, at its position, if there is
+     * room for it; out is left alone otherwise.
+     * @return the length of the value or -1 if there is none
+     */
+    int get(ByteKey key, ByteBuffer out);
+
+    /** @return true if the key was present and has been removed */
+    boolean remove(ByteKey key);
+
+    /** @return the number of pairs stored */
+    int size();
+
+    /** @return an estimate of the memory taken by the pairs, in bytes */
+    long memory();
+
+    /**
+     * @return the number of pairs dropped to stay within a memory budget,
+     * 0 for a store without one
+     */
+    default long evicted() {
+        return 0;
+    }
+
+    /**
+     * Have listener called with the key of every pair the store drops on
+     * its own to stay within a memory budget. It is called while the
+     * store still holds the lock of the key, so an update of the key
+     * that follows the eviction reaches the listener's caller after it.
+     * A store without a budget never calls it.
+     */
+    default void onEvict(Consumer<ByteKey> listener) {
+    }
+
+    /**
+     * Call action for every pair. The iteration is weakly consistent, pairs
+     * changed while it runs may or may not be seen, and a pair may be seen
+     * again later, then with the value it has by then.
+     */
+    void forEach(BiConsumer<ByteKey, byte[]> action);
+}
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One MapServer worker thread. Receives datagrams from its channel,
+ * executes them against the shared store and sends the reply back.
+ * The receive and reply buffers are direct and reused for every packet,
+ * and the constant parts of the replies are encoded once, so a request
+ * that does not change the store allocates nothing.
+ **/
+
+public class MapWorker implements Runnable {
+    //largest request accepted, longer datagrams are truncated
+    public static final int MAX_REQUEST = 1000;
+    //largest UDP payload, replies never exceed it
+    public static final int MAX_REPLY = 65507;
+
+    //pre-encoded replies
+    private static final byte[] OK = ascii("Ok");
+    private static final byte[] NO_MATCH = ascii("no match");
+    private static final byte[] UPDATED = ascii("updated:");
+    private static final byte[] VALUE = ascii("ok:");
+    private static final byte[] MULTI = ascii("multi:");
+
+    private final DatagramChannel channel;
+    private final MapStore store;
+    private final MapStats stats;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_REQUEST);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_REPLY);
+    private final byte[] buf = new byte[MAX_REQUEST];
+    private final MapRequest request = new MapRequest();
+
+    public MapWorker(DatagramChannel channel, MapStore store,
+                     MapStats stats) {
+        this.channel = channel;
+        this.store = store;
+        this.stats = stats;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                in.clear();
+                // wait for incoming packet (blocking)
+                SocketAddress client = channel.receive(in);
+                long start = System.nanoTime();
+                in.flip();
+                int length = in.remaining();
+                in.get(buf, 0, length);
+
+                process(length);
+
+                //send response
+                out.flip();
+                int sent = out.remaining();
+                channel.send(out, client);
+                stats.request(request.command, length, sent, start);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("MapWorker: " + e);
+            }
+        }
+    }
+
+    /**
+     * Execute the request held in the first length bytes of buf and write
+     * the response to send back to the client in out.
+     */
+    private void process(int length) {
+        out.clear();
+        int command = request.parse(buf, length);
+        // a request id is echoed even when the request is invalid
+        int start = request.idLen;
+        out.put(buf, 0, start);
+        try {
+            switch (command) {
+                case MapRequest.PUT:
+                    //insert the key and value to the store, if needed this
+                    // will update and existing key
+                    replyPut(store.put(request.key, buf, request.valOff,
+                            request.valLen));
+                    break;
+                case MapRequest.GET:
+                    if (replyValue() == 0) reply(NO_MATCH);
+                    break;
+                case MapRequest.REMOVE:
+                    reply(store.remove(request.key) ? OK : NO_MATCH);
+                    break;
+                case MapRequest.MPUT:
+                case MapRequest.MGET:
+                    processBatch();
+                    break;
+                case MapRequest.STATS:
+                    reply("stats:\n" + stats.format());
+                    break;
+                //if command is NOT VALID
+                default:
+                    reply("Error: unrecognizable input: {" +
+                            new String(buf, start, length - start,
+                                    StandardCharsets.US_ASCII) + "}");
+            }
+        } catch (IllegalStateException e) {
+            // the store could not take the pair
+            stats.error();
+            out.clear();
+            out.put(buf, 0, start);
+            reply("Error: " + e.getMessage());
+        }
+    }
+
+    private void reply(String response) {
+        reply(ascii(response));
+    }
+
+    private void reply(byte[] bytes) {
+        out.put(bytes, 0, Math.min(bytes.length, out.remaining()));
+    }
+
+    /** Write the answer to a put: updated:key if the key existed, or Ok. */
+    private void replyPut(boolean updated) {
+        if (!updated) {
+            reply(OK);
+            return;
+        }
+        reply(UPDATED);
+        out.put(request.key.array(), request.key.offset(),
+                Math.min(request.key.length(), out.remaining()));
+    }
+
+    /**
+     * Write ok:value for the current key, straight from the store.
+     * @return 1 if it was written, 0 if there is no such key and -1 if the
+     * value does not fit; out is left as it was unless 1 is returned
+     */
+    private int replyValue() {
+        int mark = out.position();
+        out.put(VALUE);
+        int room = out.remaining();
+        int n = store.get(request.key, out);
+        if (n >= 0 && n <= room) {
+            stats.hit();
+            return 1;
+        }
+        out.position(mark);
+        if (n >= 0) return -1;
+        stats.miss();
+        return 0;
+    }
+
+    /**
+     * Execute the entries of an mput or mget request.
+     * The reply is multi:n followed by one line per executed entry, holding
+     * what the single put or get would have answered. Execution stops at the
+     * first entry whose result does not fit in the reply, so n may be smaller
+     * than the number of entries; the client resends the rest. A put the
+     * store can not take ends the batch too, its line holds the error, so
+     * the client still knows which puts took effect.
+     */
+    private void processBatch() {
+        int header = out.position();
+        // the results go after room for the multi:n header
+        out.position(header + 16);
+        int n = 0;
+        while (request.nextEntry()) {
+            int mark = out.position();
+            // room for the newline and the longest constant answer
+            if (out.remaining() < 10) break;
+            out.put((byte) '\n');
+            if (request.command == MapRequest.MGET) {
+                int found = replyValue();
+                if (found < 0) {
+                    out.position(mark);
+                    break;
+                }
+                if (found == 0) reply(NO_MATCH);
+            } else if (request.valLen < 0) {
+                reply("Error: unrecognizable input: {" + new String(buf,
+                        request.entryOff, request.entryLen,
+                        StandardCharsets.US_ASCII) + "}");
+            } else {
+                // the longest answer is known before the put is executed, and
+                // must leave room, a full reply counts as cut short
+                if (out.remaining() <= 8 + request.key.length()) {
+                    out.position(mark);
+                    break;
+                }
+                try {
+                    replyPut(store.put(request.key, buf, request.valOff,
+                            request.valLen));
+                } catch (IllegalStateException e) {
+                    // the store could not take the pair
+                    stats.error();
+                    reply("Error: " + e.getMessage());
+                    if (out.hasRemaining()) n++;
+                    else out.position(mark);
+                    break;
+                }
+            }
+            if (!out.hasRemaining()) {
+                // the result may have been cut short
+                out.position(mark);
+                break;
+            }
+            n++;
+        }
+        // put the header in front of the results
+        int end = out.position();
+        out.position(header);
+        out.put(MULTI);
+        putDecimal(n);
+        out.put(out.position(), out, header + 16, end - header - 16);
+        out.position(out.position() + end - header - 16);
+    }
+
+    /** Write the decimal digits of n, which is not negative, to out. */
+    private void putDecimal(int n) {
+        int digits = 1;
+        for (int m = n; m >= 10; m /= 10) digits++;
+        int pos = out.position() + digits;
+        out.position(pos);
+        do {
+            out.put(--pos, (byte) ('0' + n % 10));
+            n /= 10;
+        } while (n > 0);
+    }
+}
@@ -0,0 +1,330 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * MapStore that keeps keys and values outside the Java heap.
+ *
+ * Pairs are appended as records [keyLen][valLen][key][value] to direct
+ * ByteBuffer slabs. The index is an open-addressing table (linear probing)
+ * of primitive longs, each holding the address of a record, next to an int
+ * array with the hash of the key so most probes never touch the slabs.
+ * An update appends a new record and leaves the old one as garbage; when
+ * the slabs reach the capacity the live records are compacted in place,
+ * provided at least 1/GARBAGE_RATIO of the slabs is garbage. With less
+ * the store is full: a compaction would free too little for the next
+ * puts, and every one of them would slide all the records again.
+ *
+ * forEach walks the records in address order rather than the index, so a
+ * resize of the index, which rehashes the pairs, does not disturb it; a
+ * record is live if its slot in the index points at it. Only a compaction
+ * moves records, the walk then starts over.
+ *
+ * Readers share a read lock and copy values straight into the reply
+ * buffer; writers take the write lock.
+ **/
+
+public class OffHeapStore implements MapStore {
+    private static final int SLAB_SIZE = 64 << 20;
+    private static final int HEADER = 8;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    //compact once this fraction of the slabs, inverted, is garbage
+    private static final int GARBAGE_RATIO = 8;
+
+    private final long capacity;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private final ArrayList<Integer> fill = new ArrayList<>(); // used per slab
+
+    private long[] addrs = new long[1024];  // record address + 1, see addr()
+    private int[] hashes = new int[1024];
+    private int used;                       // slots not EMPTY
+    private int live;                       // slots holding a record
+    private long garbage;                   // bytes of dead records
+    private long compactions;               // so far, for forEach
+
+    /**
+     * @param capacity is the most memory the slabs may take, in bytes
+     */
+    public OffHeapStore(long capacity) {
+        this.capacity = Math.max(capacity, SLAB_SIZE);
+    }
+
+    /** Pack a slab number and an offset, never EMPTY or DELETED. */
+    private static long addr(int slab, int offset) {
+        return (((long) slab << 32) | offset) + 1;
+    }
+
+    private ByteBuffer slabOf(long addr) {
+        return slabs.get((int) ((addr - 1) >>> 32));
+    }
+
+    private static int offsetOf(long addr) {
+        return (int) (addr - 1);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find key in the index.
+     * @return the slot holding key, or -(slot + 1) for the slot where it
+     * would be inserted
+     */
+    private int find(ByteKey key) {
+        int mask = addrs.length - 1;
+        int h = key.hashCode();
+        int insert = -1;
+        for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+            long a = addrs[i];
+            if (a == EMPTY) return -((insert >= 0 ? insert : i) + 1);
+            if (a == DELETED) {
+                if (insert < 0) insert = i;
+            } else if (hashes[i] == h && keyEquals(a, key)) {
+                return i;
+            }
+        }
+    }
+
+    private boolean keyEquals(long addr, ByteKey key) {
+        ByteBuffer slab = slabOf(addr);
+        int off = offsetOf(addr);
+        int len = key.length();
+        if (slab.getInt(off) != len) return false;
+        byte[] bytes = key.array();
+        int from = key.offset();
+        off += HEADER;
+        for (int i = 0; i < len; i++) {
+            if (slab.get(off + i) != bytes[from + i]) return false;
+        }
+        return true;
+    }
+
+    private int recordSize(long addr) {
+        ByteBuffer slab = slabOf(addr);
+        int off = offsetOf(addr);
+        return HEADER + slab.getInt(off) + slab.getInt(off + 4);
+    }
+
+    public boolean put(ByteKey key, byte[] buf, int valOff, int valLen) {
+        int size = HEADER + key.length() + valLen;
+        lock.writeLock().lock();
+        try {
+            long a = allocate(size);
+            ByteBuffer slab = slabOf(a);
+            int off = offsetOf(a);
+            slab.putInt(off, key.length()).putInt(off + 4, valLen)
+                    .put(off + HEADER, key.array(), key.offset(), key.length())
+                    .put(off + HEADER + key.length(), buf, valOff, valLen);
+
+            // look up after allocating, a compaction moves the records
+            int i = find(key);
+            if (i >= 0) {
+                garbage += recordSize(addrs[i]);
+                addrs[i] = a;
+                return true;
+            }
+            i = -(i + 1);
+            if (addrs[i] == EMPTY) used++;
+            addrs[i] = a;
+            hashes[i] = key.hashCode();
+            live++;
+            if (used > addrs.length * 3 / 4) resize();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int get(ByteKey key, ByteBuffer out) {
+        lock.readLock().lock();
+        try {
+            int i = find(key);
+            if (i < 0) return -1;
+            ByteBuffer slab = slabOf(addrs[i]);
+            int off = offsetOf(addrs[i]);
+            int valLen = slab.getInt(off + 4);
+            if (valLen <= out.remaining()) {
+                out.put(out.position(), slab, off + HEADER + slab.getInt(off),
+                        valLen);
+                out.position(out.position() + valLen);
+            }
+            return valLen;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(ByteKey key) {
+        lock.writeLock().lock();
+        try {
+            int i = find(key);
+            if (i < 0) return false;
+            garbage += recordSize(addrs[i]);
+            addrs[i] = DELETED;
+            live--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the size of the slabs and of the index */
+    public long memory() {
+        lock.readLock().lock();
+        try {
+            return (long) slabs.size() * SLAB_SIZE + addrs.length * 12L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void forEach(BiConsumer<ByteKey, byte[]> action) {
+        // copy the pairs out a record at a time, so writers are not held
+        // up. A compaction slides records over the ones already passed, so
+        // the walk then starts over and passes those pairs again
+        long seen = -1;
+        int s = 0, next = 0;                // address of the next record
+        while (true) {
+            ByteKey key;
+            byte[] value;
+            lock.readLock().lock();
+            try {
+                if (compactions != seen) {
+                    seen = compactions;
+                    s = 0;
+                    next = 0;
+                }
+                if (s >= slabs.size()) return;
+                if (next >= fill.get(s)) {
+                    s++;
+                    next = 0;
+                    continue;
+                }
+                long a = addr(s, next);
+                next += recordSize(a);
+                if (slotOf(a) < 0) continue;
+                ByteBuffer slab = slabOf(a);
+                int off = offsetOf(a);
+                byte[] k = new byte[slab.getInt(off)];
+                value = new byte[slab.getInt(off + 4)];
+                slab.get(off + HEADER, k);
+                slab.get(off + HEADER + k.length, value);
+                key = new ByteKey().set(k, 0, k.length);
+            } finally {
+                lock.readLock().unlock();
+            }
+            action.accept(key, value);
+        }
+    }
+
+    /**
+     * Reserve size bytes at the end of the slabs, compacting them or adding
+     * a slab when the current one is full.
+     * @return the address of the reserved space
+     */
+    private long allocate(int size) {
+        if (size > SLAB_SIZE) {
+            throw new IllegalStateException("pair too large");
+        }
+        int last = slabs.size() - 1;
+        if (last >= 0 && fill.get(last) + size <= SLAB_SIZE) {
+            int off = fill.get(last);
+            fill.set(last, off + size);
+            return addr(last, off);
+        }
+        if ((long) (slabs.size() + 1) * SLAB_SIZE > capacity) {
+            if (garbage * GARBAGE_RATIO < (long) slabs.size() * SLAB_SIZE) {
+                throw new IllegalStateException("store full");
+            }
+            compact();
+            return allocate(size);
+        }
+        slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        fill.add(0);
+        return allocate(size);
+    }
+
+    /**
+     * Slide the live records down over the dead ones, in address order,
+     * and release the slabs left empty.
+     */
+    private void compact() {
+        int dSlab = 0, dOff = 0;
+        for (int s = 0; s < slabs.size(); s++) {
+            ByteBuffer slab = slabs.get(s);
+            int end = fill.get(s);
+            for (int off = 0; off < end; ) {
+                long a = addr(s, off);
+                int size = recordSize(a);
+                int i = slotOf(a);
+                if (i >= 0) {
+                    if (dOff + size > SLAB_SIZE) {
+                        fill.set(dSlab, dOff);
+                        dSlab++;
+                        dOff = 0;
+                    }
+                    if (dSlab != s || dOff != off) {
+                        slabs.get(dSlab).put(dOff, slab, off, size);
+                        addrs[i] = addr(dSlab, dOff);
+                    }
+                    dOff += size;
+                }
+                off += size;
+            }
+        }
+        fill.set(dSlab, dOff);
+        while (slabs.size() > dSlab + 1) {
+            slabs.remove(slabs.size() - 1);
+            fill.remove(fill.size() - 1);
+        }
+        garbage = 0;
+        compactions++;
+    }
+
+    /** @return the slot pointing at the record at a, -1 if it is dead */
+    private int slotOf(long a) {
+        ByteBuffer slab = slabOf(a);
+        int off = offsetOf(a);
+        int len = slab.getInt(off);
+        int h = 1;
+        for (int i = 0; i < len; i++) h = 31 * h + slab.get(off + HEADER + i);
+        int mask = addrs.length - 1;
+        for (int i = spread(h) & mask; addrs[i] != EMPTY; i = (i + 1) & mask) {
+            if (addrs[i] == a) return i;
+        }
+        return -1;
+    }
+
+    /** Double the index, dropping the DELETED slots. */
+    private void resize() {
+        long[] oldAddrs = addrs;
+        int[] oldHashes = hashes;
+        int n = (live * 2 > oldAddrs.length / 2) ?
+                oldAddrs.length * 2 : oldAddrs.length;
+        addrs = new long[n];
+        hashes = new int[n];
+        int mask = n - 1;
+        for (int j = 0; j < oldAddrs.length; j++) {
+            long a = oldAddrs[j];
+            if (a == EMPTY || a == DELETED) continue;
+            int i = spread(oldHashes[j]) & mask;
+            while (addrs[i] != EMPTY) i = (i + 1) & mask;
+            addrs[i] = a;
+            hashes[i] = oldHashes[j];
+        }
+        used = live;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * W-TinyLFU eviction. New entries enter a small LRU window (1% of the
+ * budget). Entries pushed out of the window become candidates for the
+ * main space, a segmented LRU split into probation and protected (80% of
+ * the budget) queues: a candidate is kept only if the FrequencySketch has
+ * seen its key more often than the key of the probation entry it would
+ * push out. A hit in probation promotes the entry to protected, whose
+ * overflow is demoted back to probation.
+ **/
+
+public class TinyLfuPolicy implements EvictionPolicy {
+    private final Queue window = new Queue();
+    private final Queue probation = new Queue();
+    private final Queue protect = new Queue();
+    private final long windowMax;
+    private final long protectMax;
+    private final FrequencySketch sketch;
+    private Entry candidate;        // last entry pushed out of the window
+
+    /** @param budget is the byte budget of the store segment */
+    public TinyLfuPolicy(long budget) {
+        windowMax = Math.max(1, budget / 100);
+        protectMax = (budget - windowMax) * 8 / 10;
+        // about one counter per 256 bytes of budget
+        int width = 256;
+        while (width < (1 << 16) && width < budget / 256) width <<= 1;
+        sketch = new FrequencySketch(width);
+    }
+
+    public void onInsert(Entry e) {
+        sketch.increment(e.key);
+        window.addFirst(e);
+        // entries pushed out of the window wait in probation for admission
+        while (window.cost > windowMax && window.last() != e) {
+            candidate = window.last();
+            window.remove(candidate);
+            probation.addFirst(candidate);
+        }
+    }
+
+    public void onAccess(Entry e) {
+        sketch.increment(e.key);
+        if (e.queue == probation) {
+            probation.remove(e);
+            protect.addFirst(e);
+            while (protect.cost > protectMax) {
+                Entry demoted = protect.last();
+                protect.remove(demoted);
+                probation.addFirst(demoted);
+            }
+        } else {
+            e.queue.moveToFront(e);
+        }
+    }
+
+    public void onRemove(Entry e) {
+        if (e == candidate) candidate = null;
+        e.queue.remove(e);
+    }
+
+    public Entry victim() {
+        Entry victim = probation.last();
+        if (victim == null || victim == candidate) victim = protect.last();
+        if (candidate != null && candidate.queue == probation &&
+                victim != null) {
+            // the candidate is kept only if it is seen more than the victim
+            Entry c = candidate;
+            candidate = null;
+            return (sketch.frequency(c.key) > sketch.frequency(victim.key)) ?
+                    victim : c;
+        }
+        candidate = null;
+        if (!probation.isEmpty()) return probation.last();
+        if (!protect.isEmpty()) return protect.last();
+        return window.last();
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.*;
+
+/**
+ * Bloom filter over string keys, used by LsmSegment to skip a segment on a
+ * get without reading it. With BITS_PER_KEY bits per key and HASHES bit
+ * positions per key about 1% of the keys that were never added are
+ * reported as present; added keys always are.
+ **/
+
+public class BloomFilter {
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private final long[] bits;
+
+	/** @param keys is the number of keys that will be added */
+	public BloomFilter(long keys) {
+		this(new long[(int) Math.min(Integer.MAX_VALUE - 8,
+				Math.max(1, (keys * BITS_PER_KEY + 63) / 64))]);
+	}
+
+	private BloomFilter(long[] bits) {
+		this.bits = bits;
+	}
+
+	public void add(String key) {
+		long h = hash(key);
+		long step = (h >>> 32) | 1;
+		long size = bits.length * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h + i * step, size);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/** @return false if key was surely never added */
+	public boolean mightContain(String key) {
+		long h = hash(key);
+		long step = (h >>> 32) | 1;
+		long size = bits.length * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h + i * step, size);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	/** Write the filter as [words][long]... */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(bits.length);
+		for (long word : bits) out.writeLong(word);
+	}
+
+	public static BloomFilter read(DataInput in) throws IOException {
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+		return new BloomFilter(bits);
+	}
+
+	/** 64 bit FNV-1a of the chars of key, mixed as in MurmurHash3. */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit of a log file. Updates of all connections append their
+ * records to a shared buffer and get a sequence number; a single
+ * committer thread swaps the buffer with a second one, writes what piled
+ * up in one write and forces the file once for the whole batch. Waiting
+ * answers are then released, with awaitDurable or whenDurable.
+ *
+ * The committer starts a batch as soon as an update comes in, unless
+ * linger is set: then it waits up to linger for batchSize updates to pile
+ * up, trading latency for fewer forces. It lingers parked outside the
+ * monitor rather than in wait, which only sleeps whole milliseconds, so
+ * a linger below a millisecond is kept. While a force is going on the
+ * next batch piles up anyway, so with many connections batches grow on
+ * their own.
+ **/
+
+public class GroupCommitter implements GroupCommitterMBean {
+	private final int batchSize;
+	private final long lingerNanos;
+	private final Thread committer;
+
+	private FileChannel channel;    // only used by the committer thread
+	private ByteBuffer active = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer flushing = ByteBuffer.allocate(1 << 16);
+	private long appended;          // sequence number of the last record
+	private long durable;           // last record forced to disk
+	private int pending;            // records in active
+	private long firstPending;      // time the first of them came in
+	private File rollTo;            // file requested by roll(), or null
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+	// metrics, guarded by this
+	private long commits, updates, maxBatch;
+	private long commitNanos, maxCommitNanos;
+	private final long[] commitBuckets = new long[64];
+
+	/** An answer waiting for its updates. */
+	private static class Waiter implements Comparable<Waiter> {
+		final long seq;
+		final Runnable done;
+
+		Waiter(long seq, Runnable done) {
+			this.seq = seq;
+			this.done = done;
+		}
+
+		public int compareTo(Waiter other) {
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	/**
+	 * Open file for appending and start the committer thread.
+	 * @param batchSize is the number of updates that end lingering
+	 * @param lingerMicros is the longest time a batch waits for more
+	 * updates, 0 to commit as soon as possible
+	 */
+	public GroupCommitter(File file, int batchSize, long lingerMicros)
+			throws IOException {
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerNanos = lingerMicros * 1000;
+		this.channel = open(file);
+		committer = new Thread(this::commitLoop, "GroupCommitter");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Append a record to the next batch.
+	 * @return the sequence number of the record, for awaitDurable
+	 */
+	public synchronized long append(byte[] record) {
+		if (active.remaining() < record.length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+					active.capacity() * 2, active.position() + record.length));
+			active.flip();
+			active = bigger.put(active);
+		}
+		active.put(record);
+		if (pending++ == 0) firstPending = System.nanoTime();
+		// the committer only waits for the first record or a full batch
+		if (pending == 1) notifyAll();
+		if (pending == batchSize) LockSupport.unpark(committer);
+		return ++appended;
+	}
+
+	/** @return the sequence number of the last record appended */
+	public synchronized long appended() {
+		return appended;
+	}
+
+	/** Wait until record seq is on disk. */
+	public synchronized void awaitDurable(long seq) {
+		while (durable < seq) waitUninterruptibly(0);
+	}
+
+	/**
+	 * Run done once record seq is on disk, in the committer thread, or at
+	 * once in this one if it already is.
+	 */
+	public void whenDurable(long seq, Runnable done) {
+		synchronized (this) {
+			if (durable < seq) {
+				waiters.add(new Waiter(seq, done));
+				return;
+			}
+		}
+		done.run();
+	}
+
+	/**
+	 * Commit the records appended so far and continue in file next. Returns
+	 * once the old file is complete and forced.
+	 */
+	public synchronized void roll(File next) {
+		rollTo = next;
+		notifyAll();
+		LockSupport.unpark(committer);
+		while (rollTo != null) waitUninterruptibly(0);
+	}
+
+	private void commitLoop() {
+		while (true) {
+			long seq, first;
+			int batch;
+			File roll;
+			synchronized (this) {
+				while (pending == 0 && rollTo == null) waitUninterruptibly(0);
+			}
+			// linger for a fuller batch, append unparks a full one
+			while (true) {
+				long left;
+				synchronized (this) {
+					if (pending >= batchSize || rollTo != null) break;
+					left = firstPending + lingerNanos - System.nanoTime();
+					if (left <= 0) break;
+				}
+				LockSupport.parkNanos(this, left);
+			}
+			synchronized (this) {
+				ByteBuffer t = active; active = flushing; flushing = t;
+				seq = appended;
+				batch = pending;
+				first = firstPending;
+				pending = 0;
+				roll = rollTo;
+			}
+			try {
+				flushing.flip();
+				while (flushing.hasRemaining()) channel.write(flushing);
+				flushing.clear();
+				channel.force(false);
+				if (roll != null) {
+					channel.close();
+					channel = open(roll);
+				}
+			} catch (IOException e) {
+				System.err.println("GroupCommitter: unable to write log: " + e);
+				System.exit(1);
+			}
+			List<Runnable> released = new ArrayList<>();
+			synchronized (this) {
+				if (batch > 0) record(batch, System.nanoTime() - first);
+				durable = seq;
+				if (roll != null) rollTo = null;
+				while (!waiters.isEmpty() && waiters.peek().seq <= durable) {
+					released.add(waiters.poll().done);
+				}
+				notifyAll();
+			}
+			for (Runnable done : released) done.run();
+		}
+	}
+
+	private void record(int batch, long nanos) {
+		commits++;
+		updates += batch;
+		maxBatch = Math.max(maxBatch, batch);
+		commitNanos += nanos;
+		maxCommitNanos = Math.max(maxCommitNanos, nanos);
+		commitBuckets[64 - Long.numberOfLeadingZeros(nanos / 1000)]++;
+	}
+
+	private void waitUninterruptibly(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	public synchronized long getUpdates() {
+		return updates;
+	}
+
+	public synchronized double getMeanBatchSize() {
+		return (commits == 0) ? 0 : (double) updates / commits;
+	}
+
+	public synchronized long getMaxBatchSize() {
+		return maxBatch;
+	}
+
+	public synchronized double getMeanCommitMicros() {
+		return (commits == 0) ? 0 : commitNanos / 1000.0 / commits;
+	}
+
+	/** The upper bound of the power of two bucket holding the 99th. */
+	public synchronized long getCommitMicros99() {
+		long rank = (long) Math.ceil(commits * 0.99), seen = 0;
+		for (int b = 0; b < commitBuckets.length; b++) {
+			seen += commitBuckets[b];
+			if (seen >= rank && seen > 0) return 1L << b;
+		}
+		return 0;
+	}
+
+	public synchronized long getMaxCommitMicros() {
+		return maxCommitNanos / 1000;
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ * Management interface of GroupCommitter, registered by TcpMapServer as
+ * TcpMapServer:type=GroupCommitter,port=N. Times are in microseconds.
+ **/
+
+public interface GroupCommitterMBean {
+	/** @return the number of commits, each one write and one force */
+	long getCommits();
+
+	/** @return the number of updates committed */
+	long getUpdates();
+
+	double getMeanBatchSize();
+
+	long getMaxBatchSize();
+
+	/** @return the mean time from the first update of a batch to its force */
+	double getMeanCommitMicros();
+
+	/** @return the commit time 99% of the commits stay under */
+	long getCommitMicros99();
+
+	long getMaxCommitMicros();
+}
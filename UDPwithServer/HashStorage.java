@@ -0,0 +1,53 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage on a ConcurrentHashMap. Point operations are the cheapest of
+ * the engines, but a scan or prefix query has to look at every pair and
+ * sort the ones that match.
+ **/
+
+public class HashStorage implements Storage {
+	private final ConcurrentHashMap<String, String> map =
+			new ConcurrentHashMap<>();
+
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	public String put(String key, String value) {
+		return map.put(key, value);
+	}
+
+	public String remove(String key) {
+		return map.remove(key);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return map.entrySet().iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		TreeMap<String, String> matches = new TreeMap<>();
+		map.forEach((key, value) -> {
+			if (key.compareTo(from) >= 0 && (to == null || key.compareTo(to) < 0)) {
+				matches.put(key, value);
+			}
+		});
+		return matches.entrySet().iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		TreeMap<String, String> matches = new TreeMap<>();
+		map.forEach((key, value) -> {
+			if (key.startsWith(prefix)) matches.put(key, value);
+		});
+		return matches.entrySet().iterator();
+	}
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted segment file of LsmStorage. The file holds the pairs in
+ * key order as [keyLen][key][valLen][value], a valLen of -1 marking a
+ * removed key, followed by
+ *
+ * index    [entries] then [keyLen][key][long offset] for the first pair
+ *          of every block of INDEX_EVERY pairs
+ * bloom    the BloomFilter of the keys, see BloomFilter.write
+ * trailer  [long indexOffset][long bloomOffset][long pairs][long MAGIC]
+ *
+ * Strings are UTF-8, lengths are ints. Opening a segment only reads the
+ * index and the bloom filter; a get that passes the filter reads the one
+ * block the index points to.
+ *
+ * A segment is written to a temporary file and renamed, so a segment file
+ * is always complete. Once compaction replaced it, its file is deleted but
+ * its channel stays open for the lookups and iterators still using it, it
+ * is closed when the segment is garbage collected.
+ **/
+
+public class LsmSegment {
+	private static final long MAGIC = 0x4c534d5345473031L; // "LSMSEG01"
+	private static final int INDEX_EVERY = 32;
+	private static final int TRAILER = 32;
+
+	public final long id;
+	private final File file;
+	private final FileChannel channel;
+	private final String[] indexKeys;
+	private final long[] indexOffsets;
+	private final long dataEnd;
+	private final long pairs;
+	private final BloomFilter bloom;
+
+	/** @return the file holding segment id in dir */
+	public static File file(File dir, long id) {
+		return new File(dir, "segment." + id);
+	}
+
+	/** Open segment id of dir, reading its index and bloom filter. */
+	public LsmSegment(File dir, long id) throws IOException {
+		this.id = id;
+		this.file = file(dir, id);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		long size = channel.size();
+		if (size < TRAILER) throw new IOException(file + " is not a segment");
+		ByteBuffer trailer = read(size - TRAILER, TRAILER);
+		dataEnd = trailer.getLong();
+		long bloomOffset = trailer.getLong();
+		pairs = trailer.getLong();
+		if (trailer.getLong() != MAGIC) {
+			throw new IOException(file + " is not a segment");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				read(dataEnd, (int) (size - TRAILER - dataEnd)).array()));
+		int entries = in.readInt();
+		indexKeys = new String[entries];
+		indexOffsets = new long[entries];
+		for (int i = 0; i < entries; i++) {
+			byte[] key = new byte[in.readInt()];
+			in.readFully(key);
+			indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+			indexOffsets[i] = in.readLong();
+		}
+		if (bloomOffset != size - TRAILER - in.available()) {
+			throw new IOException(file + " has a broken index");
+		}
+		bloom = BloomFilter.read(in);
+	}
+
+	/**
+	 * Write pairs, in key order, as segment id of dir and open it. Values
+	 * that are LsmStorage.TOMBSTONE are written as removed keys.
+	 * @param expected is about the number of pairs, to size the filter
+	 */
+	public static LsmSegment write(File dir, long id,
+			Iterator<Map.Entry<String, String>> pairs, long expected)
+			throws IOException {
+		File file = file(dir, id);
+		File tmp = new File(file.getPath() + ".tmp");
+		BloomFilter bloom = new BloomFilter(expected);
+		List<byte[]> indexKeys = new ArrayList<>();
+		List<Long> indexOffsets = new ArrayList<>();
+		long count = 0, offset = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos, 1 << 16));
+			while (pairs.hasNext()) {
+				Map.Entry<String, String> pair = pairs.next();
+				byte[] key = pair.getKey().getBytes(StandardCharsets.UTF_8);
+				if (count++ % INDEX_EVERY == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(offset);
+				}
+				bloom.add(pair.getKey());
+				out.writeInt(key.length);
+				out.write(key);
+				offset += 8 + key.length;
+				if (pair.getValue() == LsmStorage.TOMBSTONE) {
+					out.writeInt(-1);
+				} else {
+					byte[] value =
+							pair.getValue().getBytes(StandardCharsets.UTF_8);
+					out.writeInt(value.length);
+					out.write(value);
+					offset += value.length;
+				}
+			}
+			long indexOffset = offset;
+			out.writeInt(indexKeys.size());
+			offset += 4;
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeInt(indexKeys.get(i).length);
+				out.write(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+				offset += 12 + indexKeys.get(i).length;
+			}
+			long bloomOffset = offset;
+			bloom.write(out);
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(count);
+			out.writeLong(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		return new LsmSegment(dir, id);
+	}
+
+	/** @return the number of pairs, removed keys included */
+	public long pairs() {
+		return pairs;
+	}
+
+	/**
+	 * @return the value of key, LsmStorage.TOMBSTONE if the segment holds
+	 * its removal, or null if the segment does not know key
+	 */
+	public String get(String key) throws IOException {
+		if (!bloom.mightContain(key)) return null;
+		int block = floor(key);
+		if (block < 0) return null;
+		long end = (block + 1 < indexOffsets.length) ?
+				indexOffsets[block + 1] : dataEnd;
+		ByteBuffer bytes = read(indexOffsets[block],
+				(int) (end - indexOffsets[block]));
+		byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+		while (bytes.hasRemaining()) {
+			int keyLen = bytes.getInt();
+			int at = bytes.position();
+			bytes.position(at + keyLen);
+			int valLen = bytes.getInt();
+			if (Arrays.equals(bytes.array(), at, at + keyLen, wanted, 0,
+					wanted.length)) {
+				if (valLen < 0) return LsmStorage.TOMBSTONE;
+				return new String(bytes.array(), bytes.position(), valLen,
+						StandardCharsets.UTF_8);
+			}
+			if (valLen > 0) bytes.position(bytes.position() + valLen);
+		}
+		return null;
+	}
+
+	/**
+	 * @param from is the first key, inclusive
+	 * @param to is the end key, exclusive, or null for no end
+	 * @return the pairs with keys in [from, to), in key order, removed keys
+	 * with the value LsmStorage.TOMBSTONE
+	 */
+	public Iterator<Map.Entry<String, String>> iterator(String from,
+			String to) {
+		int block = floor(from);
+		long start = (block < 0) ? 0 : indexOffsets[block];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new BlockInput(start), 16 << 10));
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (next == null) throw new NoSuchElementException();
+				Map.Entry<String, String> pair = next;
+				next = advance();
+				return pair;
+			}
+
+			private Map.Entry<String, String> advance() {
+				try {
+					while (true) {
+						int keyLen;
+						try {
+							keyLen = in.readInt();
+						} catch (EOFException e) {
+							return null;
+						}
+						String key = readString(in, keyLen);
+						String value = readString(in, in.readInt());
+						if (to != null && key.compareTo(to) >= 0) return null;
+						if (key.compareTo(from) < 0) continue;
+						return new AbstractMap.SimpleImmutableEntry<>(key,
+								(value == null) ? LsmStorage.TOMBSTONE : value);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	/** Delete the file of the segment, or at exit if it is in use. */
+	public void delete() {
+		if (!file.delete()) file.deleteOnExit();
+	}
+
+	/** @return the last block whose first key is not after key, or -1 */
+	private int floor(String key) {
+		int lo = 0, hi = indexKeys.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (indexKeys[mid].compareTo(key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	private ByteBuffer read(long position, int len) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(Math.max(0, len));
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, position + bytes.position()) < 0) {
+				throw new EOFException(file + " is cut short");
+			}
+		}
+		return bytes.flip();
+	}
+
+	/** @return a string of len bytes from in, null for a len of -1 */
+	private static String readString(DataInputStream in, int len)
+			throws IOException {
+		if (len < 0) return null;
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The pairs of the segment from position on, read with positional
+	 * reads so any number of iterators can share the channel.
+	 */
+	private class BlockInput extends InputStream {
+		private long position;
+
+		BlockInput(long position) {
+			this.position = position;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= dataEnd) return -1;
+			len = (int) Math.min(len, dataEnd - position);
+			int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (n > 0) position += n;
+			return n;
+		}
+	}
+}
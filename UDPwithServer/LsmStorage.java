@@ -0,0 +1,680 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable Storage in the manner of a log-structured merge tree. Updates are
+ * appended to a log (file log.<id>) and put in the memtable, a
+ * ConcurrentSkipListMap. Once the memtable holds about memtableBytes it is
+ * frozen, a new one takes the updates and a flusher thread writes the
+ * frozen one out as an immutable sorted LsmSegment, after which its log is
+ * deleted. A removed key is kept as a tombstone until compaction.
+ *
+ * Compaction is size-tiered: once COMPACT_AT segments of about the same
+ * size sit next to each other in age, a compactor thread merges them into
+ * one, dropping overwritten values, and removed keys too if the oldest
+ * segment is among them. Flushed segments are merged into segments about
+ * COMPACT_AT times bigger, those into bigger ones again, so a pair is
+ * rewritten about log(pairs / memtable pairs) / log(COMPACT_AT) times
+ * rather than at every compaction, at the cost of keeping up to about
+ * COMPACT_AT segments per tier for a get to look at. A get looks at the
+ * memtables and then at the segments, newest first, and skips most
+ * segments with their bloom filters.
+ *
+ * The file MANIFEST lists the live segments, newest first, and the last
+ * log whose updates are in segments; it is replaced atomically after every
+ * flush and compaction. Startup opens the listed segments, which only
+ * reads their indexes and filters, and replays the logs that are not in
+ * segments yet, a few memtables at most rather than the whole history.
+ *
+ * A log record is [crc][type][keyLen][valLen][key][value], crc being the
+ * CRC32C of what follows it; replay stops at the first torn record. The
+ * records of all connections are written and forced to disk in batches by
+ * a GroupCommitter. An update is visible to every connection at once, but
+ * its answer must wait until it is durable: lastUpdate gives the update
+ * to wait for with awaitDurable or whenDurable.
+ *
+ * An update looks up the previous value, which may read segments, under
+ * the lock of one of STRIPES stripes picked by the key, so only updates
+ * of keys of the same stripe wait for that read. Its log record and its
+ * memtable entry are then added under the read lock of updating, which a
+ * freeze takes for writing, so a record is always in the log of the
+ * memtable holding it.
+ **/
+
+public class LsmStorage implements Storage {
+	//value of a removed key in memtables and segment iterators, compared
+	//by identity
+	static final String TOMBSTONE = new String("<removed>");
+
+	//segments of a tier that are merged together
+	private static final int COMPACT_AT = 4;
+	//largest ratio between the pairs of segments of a tier
+	private static final int TIER_RATIO = 4;
+	//locks serializing the updates of a key
+	private static final int STRIPES = 64;
+	//frozen memtables waiting for the flusher before updates wait
+	private static final int MAX_FROZEN = 2;
+	//estimated bytes of a memtable entry besides its strings
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final byte PUT = 'P';
+	private static final byte REMOVE = 'R';
+	private static final int HEADER = 13;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final File dir;
+	private final long memtableBytes;
+	private final ExecutorService flusher = background("LsmStorage-flusher");
+	private final ExecutorService compactor =
+			background("LsmStorage-compactor");
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final Object[] stripes = new Object[STRIPES];
+	private final ReentrantReadWriteLock updating =
+			new ReentrantReadWriteLock();
+	private final Object manifestLock = new Object();
+	private final CRC32C crc = new CRC32C();     // of replay
+	private final int batchSize;
+	private final long lingerMicros;
+	// sequence number of the last update of the calling thread
+	private final ThreadLocal<long[]> lastUpdate =
+			ThreadLocal.withInitial(() -> new long[1]);
+
+	private volatile State state;
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile GroupCommitter log;
+	// guarded by this
+	private long nextId;
+	// guarded by manifestLock
+	private long flushed;       // last log whose updates are in segments
+	private int flushedSize;    // size once those updates are applied
+
+	/** A memtable and the log holding its updates. */
+	private static class Memtable {
+		final long id;
+		final ConcurrentSkipListMap<String, String> map =
+				new ConcurrentSkipListMap<>();
+		final AtomicLong bytes = new AtomicLong(); // estimated memory taken
+		int size;               // size of the storage once frozen
+
+		Memtable(long id) {
+			this.id = id;
+		}
+	}
+
+	/** Where the pairs are, replaced as a whole on every change. */
+	private static class State {
+		final Memtable memtable;
+		final List<Memtable> frozen;        // newest first
+		final List<LsmSegment> segments;    // newest first
+
+		State(Memtable memtable, List<Memtable> frozen,
+				List<LsmSegment> segments) {
+			this.memtable = memtable;
+			this.frozen = Collections.unmodifiableList(frozen);
+			this.segments = Collections.unmodifiableList(segments);
+		}
+	}
+
+	/**
+	 * Open the storage kept in dir, creating it if needed, committing
+	 * updates as soon as possible.
+	 * @param memtableBytes is about the memory the pairs not in segments
+	 * take before they are flushed
+	 */
+	public LsmStorage(File dir, long memtableBytes) throws IOException {
+		this(dir, memtableBytes, 1000, 0);
+	}
+
+	/**
+	 * Open the storage kept in dir, creating it if needed.
+	 * @param memtableBytes is about the memory the pairs not in segments
+	 * take before they are flushed
+	 * @param batchSize and lingerMicros tune the GroupCommitter
+	 */
+	public LsmStorage(File dir, long memtableBytes, int batchSize,
+			long lingerMicros) throws IOException {
+		this.dir = dir;
+		this.memtableBytes = memtableBytes;
+		this.batchSize = batchSize;
+		this.lingerMicros = lingerMicros;
+		for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create " + dir);
+		}
+		List<LsmSegment> segments = new ArrayList<>();
+		long maxId = readManifest(segments);
+
+		// drop what the manifest does not know: temporary files, segments
+		// of an unfinished compaction and logs already in segments
+		Set<Long> live = new HashSet<>();
+		for (LsmSegment segment : segments) live.add(segment.id);
+		TreeMap<Long, File> logs = new TreeMap<>();
+		for (File file : dir.listFiles()) {
+			String name = file.getName();
+			long id;
+			if (name.endsWith(".tmp")) {
+				file.delete();
+			} else if ((id = id(name, "segment.")) >= 0) {
+				maxId = Math.max(maxId, id);
+				if (!live.contains(id)) file.delete();
+			} else if ((id = id(name, "log.")) >= 0) {
+				maxId = Math.max(maxId, id);
+				if (id <= flushed) {
+					file.delete();
+				} else {
+					logs.put(id, file);
+				}
+			}
+		}
+		nextId = maxId + 1;
+		size.set(flushedSize);
+
+		// replay the logs, then flush them to a segment of their own
+		Memtable replayed = new Memtable(logs.isEmpty() ? 0 : logs.lastKey());
+		state = new State(replayed, List.of(), segments);
+		for (File file : logs.values()) replay(file);
+		synchronized (this) {
+			log = new GroupCommitter(logFile(nextId), batchSize, lingerMicros);
+			state = new State(new Memtable(nextId++), replayed.map.isEmpty() ?
+					List.of() : List.of(replayed), segments);
+		}
+		if (!replayed.map.isEmpty()) {
+			replayed.size = size.get();
+			flush(replayed);
+		} else {
+			deleteLogs(replayed.id);
+		}
+	}
+
+	public String get(String key) {
+		State s = state;
+		String value = s.memtable.map.get(key);
+		for (int i = 0; value == null && i < s.frozen.size(); i++) {
+			value = s.frozen.get(i).map.get(key);
+		}
+		try {
+			for (int i = 0; value == null && i < s.segments.size(); i++) {
+				value = s.segments.get(i).get(key);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return (value == TOMBSTONE) ? null : value;
+	}
+
+	public String put(String key, String value) {
+		String previous;
+		boolean full;
+		synchronized (stripe(key)) {
+			previous = get(key);
+			full = update(PUT, key, value, previous);
+		}
+		if (full) freeze();
+		return previous;
+	}
+
+	public String remove(String key) {
+		String previous;
+		boolean full;
+		synchronized (stripe(key)) {
+			previous = get(key);
+			if (previous == null) return null;
+			full = update(REMOVE, key, TOMBSTONE, previous);
+		}
+		if (full) freeze();
+		return previous;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	private Object stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Log an update and apply it to the memtable, value being TOMBSTONE
+	 * for a REMOVE.
+	 * @return true if the memtable is full and has to be frozen
+	 */
+	private boolean update(byte type, String key, String value,
+			String previous) {
+		updating.readLock().lock();
+		try {
+			append(type, key, value);
+			return apply(key, value, previous);
+		} finally {
+			updating.readLock().unlock();
+		}
+	}
+
+	public long lastUpdate() {
+		return lastUpdate.get()[0];
+	}
+
+	public void awaitDurable(long seq) {
+		log.awaitDurable(seq);
+	}
+
+	public void whenDurable(long seq, Runnable done) {
+		log.whenDurable(seq, done);
+	}
+
+	/** @return the committer of the log, for its metrics */
+	public GroupCommitter committer() {
+		return log;
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return scan("", null);
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		if (to != null && from.compareTo(to) >= 0) {
+			return Collections.emptyIterator();
+		}
+		State s = state;
+		List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+		sources.add(range(s.memtable.map, from, to));
+		for (Memtable m : s.frozen) sources.add(range(m.map, from, to));
+		for (LsmSegment segment : s.segments) {
+			sources.add(segment.iterator(from, to));
+		}
+		return new MergeIterator(sources, true);
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, SortedStorage.successor(prefix));
+	}
+
+	private static Iterator<Map.Entry<String, String>> range(
+			ConcurrentSkipListMap<String, String> map, String from, String to) {
+		return ((to == null) ? map.tailMap(from) : map.subMap(from, to))
+				.entrySet().iterator();
+	}
+
+	/** Append a record to the log, value is ignored for REMOVE. */
+	private void append(byte type, String key, String value) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		byte[] v = (type == REMOVE) ? EMPTY :
+				value.getBytes(StandardCharsets.UTF_8);
+		// updates append concurrently, crc is only for replay
+		CRC32C sum = new CRC32C();
+		sum.update(type);
+		sum.update(k);
+		sum.update(v);
+		ByteBuffer record = ByteBuffer.allocate(HEADER + k.length + v.length);
+		record.putInt((int) sum.getValue()).put(type).putInt(k.length)
+				.putInt(v.length).put(k).put(v);
+		lastUpdate.get()[0] = log.append(record.array());
+	}
+
+	/**
+	 * Put value, TOMBSTONE for a removal, in the memtable.
+	 * @return true if the memtable is full and has to be frozen
+	 */
+	private boolean apply(String key, String value, String previous) {
+		Memtable m = state.memtable;
+		m.map.put(key, value);
+		long bytes = m.bytes.addAndGet(
+				2 * (key.length() + value.length()) + ENTRY_OVERHEAD);
+		if (value == TOMBSTONE) {
+			size.decrementAndGet();
+		} else if (previous == null) {
+			size.incrementAndGet();
+		}
+		// no log while replaying, the replayed memtable is flushed at once
+		return bytes >= memtableBytes && log != null;
+	}
+
+	/** Hand a full memtable to the flusher and start a new one. */
+	private synchronized void freeze() {
+		while (state.frozen.size() >= MAX_FROZEN) {
+			// the flusher is behind, let it catch up
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		Memtable m;
+		// no update is half done while the memtables are swapped
+		updating.writeLock().lock();
+		try {
+			m = state.memtable;
+			// another update may have frozen it while this one waited
+			if (m.bytes.get() < memtableBytes) return;
+			m.size = size.get();
+			// its log must be complete before the flush deletes it
+			log.roll(logFile(nextId));
+			List<Memtable> frozen = new ArrayList<>();
+			frozen.add(m);
+			frozen.addAll(state.frozen);
+			state = new State(new Memtable(nextId++), frozen, state.segments);
+		} finally {
+			updating.writeLock().unlock();
+		}
+		flusher.execute(() -> {
+			try {
+				flush(m);
+			} catch (IOException | UncheckedIOException e) {
+				// the memtable can never be let go of
+				System.err.println("LsmStorage: unable to flush " +
+						logFile(m.id) + ": " + e);
+				System.exit(1);
+			}
+		});
+	}
+
+	/** Write a frozen memtable to a segment and drop it and its logs. */
+	private void flush(Memtable m) throws IOException {
+		LsmSegment segment = LsmSegment.write(dir, newId(),
+				m.map.entrySet().iterator(), m.map.size());
+		List<LsmSegment> segments = new ArrayList<>();
+		synchronized (manifestLock) {
+			segments.add(segment);
+			segments.addAll(state.segments);
+			flushed = m.id;
+			flushedSize = m.size;
+			writeManifest(segments);
+			synchronized (this) {
+				List<Memtable> frozen = new ArrayList<>(state.frozen);
+				frozen.remove(m);
+				state = new State(state.memtable, frozen, segments);
+				// updates may wait for the flusher
+				notifyAll();
+			}
+		}
+		deleteLogs(m.id);
+		compactLater();
+	}
+
+	/** Start a compaction if a tier is full and none is running. */
+	private void compactLater() {
+		if (tier(state.segments) >= 0 && compacting.compareAndSet(false,
+				true)) {
+			compactor.execute(this::compact);
+		}
+	}
+
+	/**
+	 * Find COMPACT_AT segments next to each other whose pairs are within
+	 * TIER_RATIO of each other, the oldest such run first, so a merged
+	 * segment never leaves smaller older ones behind it and the segments
+	 * stay ordered by size.
+	 * @param segments are the segments, newest first
+	 * @return the index of the newest segment of the run, -1 if none
+	 */
+	private static int tier(List<LsmSegment> segments) {
+		for (int i = segments.size() - COMPACT_AT; i >= 0; i--) {
+			long min = Long.MAX_VALUE, max = 0;
+			for (int j = i; j < i + COMPACT_AT; j++) {
+				long pairs = Math.max(1, segments.get(j).pairs());
+				min = Math.min(min, pairs);
+				max = Math.max(max, pairs);
+			}
+			if (max <= min * TIER_RATIO) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Merge the segments of a full tier into one, in their place. Segments
+	 * flushed meanwhile are newer and stay in front of it.
+	 */
+	private void compact() {
+		boolean merged = false;
+		try {
+			List<LsmSegment> before = state.segments;
+			int first = tier(before);
+			if (first < 0) return;
+			List<LsmSegment> inputs = before.subList(first, first + COMPACT_AT);
+			long expected = 0;
+			List<Iterator<Map.Entry<String, String>>> sources =
+					new ArrayList<>();
+			for (LsmSegment segment : inputs) {
+				expected += segment.pairs();
+				sources.add(segment.iterator("", null));
+			}
+			// removed keys can only go if no older segment holds them
+			boolean oldest = first + COMPACT_AT == before.size();
+			LsmSegment output = LsmSegment.write(dir, newId(),
+					new MergeIterator(sources, oldest), expected);
+			synchronized (manifestLock) {
+				// only flushes changed the list meanwhile, in front
+				List<LsmSegment> current = state.segments;
+				int at = current.size() - before.size() + first;
+				List<LsmSegment> segments = new ArrayList<>(
+						current.subList(0, at));
+				segments.add(output);
+				segments.addAll(current.subList(at + COMPACT_AT,
+						current.size()));
+				writeManifest(segments);
+				synchronized (this) {
+					state = new State(state.memtable, state.frozen, segments);
+				}
+			}
+			for (LsmSegment segment : inputs) segment.delete();
+			merged = true;
+		} catch (IOException | UncheckedIOException e) {
+			// the segments are left as they are
+			System.err.println("LsmStorage: unable to compact: " + e);
+		} finally {
+			compacting.set(false);
+		}
+		// the merged segment may fill the next tier
+		if (merged) compactLater();
+	}
+
+	/**
+	 * Open the segments listed in MANIFEST, newest first, and read the
+	 * last flushed log and the size.
+	 * @return the largest id listed
+	 */
+	private long readManifest(List<LsmSegment> segments) throws IOException {
+		File manifest = new File(dir, "MANIFEST");
+		if (!manifest.exists()) return 0;
+		long maxId = 0;
+		for (String line : Files.readAllLines(manifest.toPath(),
+				StandardCharsets.US_ASCII)) {
+			String[] field = line.split(" ");
+			long value = Long.parseLong(field[1]);
+			if (field[0].equals("flushed")) {
+				flushed = value;
+			} else if (field[0].equals("size")) {
+				flushedSize = (int) value;
+			} else if (field[0].equals("segment")) {
+				segments.add(new LsmSegment(dir, value));
+			}
+			maxId = Math.max(maxId, value);
+		}
+		return maxId;
+	}
+
+	/** Replace MANIFEST with one listing segments, newest first. */
+	private void writeManifest(List<LsmSegment> segments) throws IOException {
+		StringBuilder text = new StringBuilder();
+		text.append("flushed ").append(flushed).append('\n');
+		text.append("size ").append(flushedSize).append('\n');
+		for (LsmSegment segment : segments) {
+			text.append("segment ").append(segment.id).append('\n');
+		}
+		File tmp = new File(dir, "MANIFEST.tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, "MANIFEST").toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Apply the records of a log file. A torn record at the end, left by
+	 * a crash, and what follows it are ignored.
+	 */
+	private void replay(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer records = ByteBuffer.wrap(bytes);
+		while (records.remaining() >= HEADER) {
+			int sum = records.getInt();
+			byte type = records.get();
+			int keyLen = records.getInt();
+			int valLen = records.getInt();
+			if (keyLen < 0 || valLen < 0 ||
+					(long) keyLen + valLen > records.remaining()) {
+				break;
+			}
+			int at = records.position();
+			crc.reset();
+			crc.update(type);
+			crc.update(bytes, at, keyLen + valLen);
+			if ((int) crc.getValue() != sum) break;
+
+			String key = new String(bytes, at, keyLen, StandardCharsets.UTF_8);
+			String previous = get(key);
+			if (type == PUT) {
+				apply(key, new String(bytes, at + keyLen, valLen,
+						StandardCharsets.UTF_8), previous);
+			} else if (previous != null) {
+				apply(key, TOMBSTONE, previous);
+			}
+			records.position(at + keyLen + valLen);
+		}
+		if (records.hasRemaining()) {
+			System.err.println("LsmStorage: dropping torn tail of " + file);
+		}
+	}
+
+	private File logFile(long id) {
+		return new File(dir, "log." + id);
+	}
+
+	/** Delete the logs up to id, their updates are in segments. */
+	private void deleteLogs(long id) {
+		for (File file : dir.listFiles()) {
+			long logId = id(file.getName(), "log.");
+			if (logId >= 0 && logId <= id) file.delete();
+		}
+	}
+
+	private synchronized long newId() {
+		return nextId++;
+	}
+
+	/** @return the id in a file name prefix<id>, or -1 if it is not one */
+	private static long id(String name, String prefix) {
+		if (!name.startsWith(prefix)) return -1;
+		try {
+			return Long.parseLong(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static ExecutorService background(String name) {
+		return Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Merges iterators over the same key range, in key order. For a key in
+	 * several of them the pair of the first one, the newest, wins; keys
+	 * whose value is TOMBSTONE are left out, or kept for a compaction that
+	 * leaves older segments that may hold the key.
+	 */
+	private static class MergeIterator
+			implements Iterator<Map.Entry<String, String>> {
+		/** An iterator and the pair it is at. */
+		private static class Source {
+			final Iterator<Map.Entry<String, String>> pairs;
+			final int rank;
+			Map.Entry<String, String> head;
+
+			Source(Iterator<Map.Entry<String, String>> pairs, int rank) {
+				this.pairs = pairs;
+				this.rank = rank;
+			}
+		}
+
+		private final PriorityQueue<Source> queue = new PriorityQueue<>(
+				(a, b) -> {
+					int c = a.head.getKey().compareTo(b.head.getKey());
+					return (c != 0) ? c : Integer.compare(a.rank, b.rank);
+				});
+		private final boolean dropRemoved;
+		private Map.Entry<String, String> next;
+
+		/**
+		 * @param sources are the iterators, newest first
+		 * @param dropRemoved leaves out the keys whose value is TOMBSTONE
+		 */
+		MergeIterator(List<Iterator<Map.Entry<String, String>>> sources,
+				boolean dropRemoved) {
+			this.dropRemoved = dropRemoved;
+			for (int i = 0; i < sources.size(); i++) {
+				advance(new Source(sources.get(i), i));
+			}
+			next = step();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (next == null) throw new NoSuchElementException();
+			Map.Entry<String, String> pair = next;
+			next = step();
+			return pair;
+		}
+
+		/** @return the next pair that is not left out, or null */
+		private Map.Entry<String, String> step() {
+			while (!queue.isEmpty()) {
+				Source newest = queue.poll();
+				Map.Entry<String, String> pair = newest.head;
+				advance(newest);
+				// older values of the same key
+				while (!queue.isEmpty() &&
+						queue.peek().head.getKey().equals(pair.getKey())) {
+					advance(queue.poll());
+				}
+				if (!dropRemoved || pair.getValue() != TOMBSTONE) return pair;
+			}
+			return null;
+		}
+
+		private void advance(Source source) {
+			if (source.pairs.hasNext()) {
+				source.head = source.pairs.next();
+				queue.add(source);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * usage: ProtocolBench [ requestFile ] [ iterations ]
+ *
+ * Compare the server side cost of the line protocol and of the binary
+ * protocol of TcpMapBinary. The requests are the lines of requestFile, as
+ * TcpMapClient sends them, or by default 10000 puts and 10000 gets of
+ * keys key0000000 and up with 100 byte values. They are encoded once in
+ * each protocol, then framed by a TcpMapFramer and executed against a new
+ * HashStorage, iterations times (default 100) after a warmup pass of the
+ * same length.
+ *
+ * For each protocol the time and the bytes allocated per request are
+ * printed, and the bytes the requests and the answers take on the wire.
+ **/
+
+public class ProtocolBench {
+	public static void main(String args[]) throws IOException {
+		List<String> lines = new ArrayList<>();
+		if (args.length > 0) {
+			for (String line : Files.readAllLines(Paths.get(args[0]),
+					StandardCharsets.ISO_8859_1)) {
+				line = line.trim();
+				if (line.length() > 0) lines.add(line);
+			}
+		} else {
+			char[] value = new char[100];
+			java.util.Arrays.fill(value, 'v');
+			for (int i = 0; i < 10000; i++) {
+				lines.add(String.format("put:key%07d:%s", i, new String(value)));
+			}
+			for (int i = 0; i < 10000; i++) {
+				lines.add(String.format("get:key%07d", i));
+			}
+		}
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+
+		// the requests as the client sends them on one connection
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		binary.write(TcpMapBinary.MAGIC);
+		for (String line : lines) {
+			text.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+			binary.write(TcpMapBinary.encode(line));
+		}
+
+		System.out.printf("%-7s %10s %10s %14s %14s%n", "proto", "ns/op",
+				"B/op", "request B/op", "answer B/op");
+		run("text", text.toByteArray(), false, lines.size(), iterations);
+		run("binary", binary.toByteArray(), true, lines.size(), iterations);
+	}
+
+	private static void run(String name, byte[] requests, boolean binary,
+			int count, int iterations) throws IOException {
+		CountingStream answers = new CountingStream();
+		long ns = 0, allocated = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			answers.count = 0;
+			long alloc0 = allocatedBytes();
+			long t0 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				serve(new ByteArrayInputStream(requests), binary,
+						new HashStorage(), answers);
+			}
+			// the first pass is the warmup
+			ns = System.nanoTime() - t0;
+			allocated = allocatedBytes() - alloc0;
+		}
+		long ops = (long) count * iterations;
+		System.out.printf("%-7s %10.1f %10.1f %14.1f %14.1f%n", name,
+				(double) ns / ops, (double) allocated / ops,
+				(double) requests.length / count,
+				(double) answers.count / ops);
+	}
+
+	/** Serve one connection the way TcpMapSession does. */
+	private static void serve(InputStream in, boolean binary,
+			Storage storage, OutputStream out) throws IOException {
+		TcpMapFramer framer = new TcpMapFramer();
+		if (binary) {
+			in.read();
+			out.write(TcpMapBinary.MAGIC);
+		}
+		while (framer.read(in) >= 0) {
+			TcpMapDump dump;
+			while (true) {
+				if (binary) {
+					ByteBuffer frame = framer.nextFrame();
+					if (frame == null) break;
+					dump = TcpMapBinary.process(frame, storage, out);
+				} else {
+					String request = framer.next();
+					if (request == null) break;
+					dump = TcpMapSession.process(request, storage, out);
+				}
+				if (dump != null) {
+					while (!dump.writeTo(out, 64 << 10));
+				}
+			}
+		}
+	}
+
+	/** Drops what is written, counting the bytes. */
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/** @return bytes allocated so far by this thread, -1 if unsupported */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Storage of a replication follower. Connections only read it, the
+ * updates come from the leader through a ReplicationFollower. A snapshot
+ * is loaded into a fresh storage of the factory while the connections go
+ * on reading the current one, which is replaced once the new one caught
+ * up with the leader.
+ *
+ * Once promoted the storage takes updates from connections too, so the
+ * follower can take over from a leader that is gone.
+ **/
+
+public class ReplicaStorage implements Storage {
+	private final Supplier<Storage> factory;
+	private volatile Storage current;
+	private volatile boolean promoted;
+
+	/** @param factory makes the empty storages snapshots are loaded into */
+	public ReplicaStorage(Supplier<Storage> factory) {
+		this.factory = factory;
+		this.current = factory.get();
+	}
+
+	/** @return an empty storage to load a snapshot into */
+	Storage fresh() {
+		return factory.get();
+	}
+
+	/** @return the storage the connections read */
+	Storage current() {
+		return current;
+	}
+
+	/** Serve the connections from storage from now on. */
+	void install(Storage storage) {
+		current = storage;
+	}
+
+	/** Take updates from the connections from now on. */
+	void promote() {
+		promoted = true;
+	}
+
+	public boolean readOnly() {
+		return !promoted;
+	}
+
+	public String get(String key) {
+		return current.get(key);
+	}
+
+	public String put(String key, String value) {
+		if (!promoted) throw new IllegalStateException("read only");
+		return current.put(key, value);
+	}
+
+	public String remove(String key) {
+		if (!promoted) throw new IllegalStateException("read only");
+		return current.remove(key);
+	}
+
+	public int size() {
+		return current.size();
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return current.all();
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return current.scan(from, to);
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return current.prefix(prefix);
+	}
+}
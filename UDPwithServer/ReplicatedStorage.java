@@ -0,0 +1,79 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage of a replication leader: updates go to another storage and are
+ * then appended to the ring of a ReplicationLeader, which streams them to
+ * the followers asynchronously. An update and its append happen under the
+ * lock of one of STRIPES stripes picked by the key, so the updates of a
+ * key are numbered in the order they were made, while updates of other
+ * keys go on in parallel.
+ **/
+
+public class ReplicatedStorage implements Storage {
+	private static final int STRIPES = 64;
+
+	private final Storage storage;
+	private final ReplicationLeader leader;
+	private final Object[] stripes = new Object[STRIPES];
+
+	public ReplicatedStorage(Storage storage, ReplicationLeader leader) {
+		this.storage = storage;
+		this.leader = leader;
+		for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+	}
+
+	private Object stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	public String get(String key) {
+		return storage.get(key);
+	}
+
+	public String put(String key, String value) {
+		synchronized (stripe(key)) {
+			String previous = storage.put(key, value);
+			leader.append(key, value);
+			return previous;
+		}
+	}
+
+	public String remove(String key) {
+		synchronized (stripe(key)) {
+			String removed = storage.remove(key);
+			// removing a missing key changes nothing to replicate
+			if (removed != null) leader.append(key, null);
+			return removed;
+		}
+	}
+
+	public int size() {
+		return storage.size();
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return storage.all();
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return storage.scan(from, to);
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return storage.prefix(prefix);
+	}
+
+	public long lastUpdate() {
+		return storage.lastUpdate();
+	}
+
+	public void awaitDurable(long seq) {
+		storage.awaitDurable(seq);
+	}
+
+	public void whenDurable(long seq, Runnable done) {
+		storage.whenDurable(seq, done);
+	}
+}
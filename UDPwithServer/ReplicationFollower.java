@@ -0,0 +1,175 @@
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Follower side of the replication of TcpMapServer: connects to the
+ * replication port of a leader, see ReplicationLeader, and applies its
+ * updates to a ReplicaStorage. A lost connection is opened again every
+ * RETRY_MILLIS; the follower then tells the leader where it stands and
+ * either catches up from the backlog of the leader or gets a snapshot.
+ *
+ * epoch and applied always describe the storage the connections read. A
+ * snapshot and the updates after it go to a storage of their own until
+ * it caught up with the leader as it was at the end of the snapshot, so
+ * readers never see a half loaded snapshot.
+ **/
+
+public class ReplicationFollower implements Runnable, ReplicationFollowerMBean {
+	//time to wait before connecting to the leader again
+	private static final int RETRY_MILLIS = 1000;
+	//a leader that sends nothing this long, not even a heartbeat, is gone
+	private static final int TIMEOUT_MILLIS =
+			5 * ReplicationLeader.HEARTBEAT_MILLIS;
+
+	private final String host;
+	private final int port;
+	private final ReplicaStorage replica;
+	private long epoch;                 // of the leader followed, 0 for none
+	private volatile long applied;      // last update applied
+	private volatile long leaderSeq;
+	private volatile long snapshots;
+	private volatile boolean connected;
+	private volatile boolean stopped;   // promoted
+	private volatile Socket socket;
+
+	public ReplicationFollower(String host, int port, ReplicaStorage replica) {
+		this.host = host;
+		this.port = port;
+		this.replica = replica;
+	}
+
+	public void run() {
+		while (!stopped) {
+			try {
+				follow();
+			} catch (IOException e) {
+				if (connected && !stopped) {
+					System.err.println("ReplicationFollower: lost " + host +
+							":" + port + ": " + e);
+				}
+			}
+			connected = false;
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/** Follow the leader until the connection is lost. */
+	private void follow() throws IOException {
+		try (Socket s = new Socket(host, port)) {
+			socket = s;
+			if (stopped) return;
+			s.setSoTimeout(TIMEOUT_MILLIS);
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeLong(epoch);
+			out.writeLong(applied);
+			out.flush();
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream(), 1 << 16));
+			connected = true;
+
+			// a snapshot being loaded, with the update it is at
+			Storage pending = null;
+			long pendingEpoch = 0, pendingApplied = 0, catchUp = 0;
+			while (!stopped) {
+				byte type = in.readByte();
+				if (type == ReplicationLeader.HEARTBEAT) {
+					leaderSeq = in.readLong();
+					continue;
+				}
+				if (type == ReplicationLeader.SNAPSHOT) {
+					pendingEpoch = in.readLong();
+					pendingApplied = in.readLong();
+					pending = replica.fresh();
+					catchUp = load(in, pending);
+					leaderSeq = Math.max(leaderSeq, catchUp);
+					snapshots++;
+				} else if (type == ReplicationLeader.PUT ||
+						type == ReplicationLeader.REMOVE) {
+					long seq = in.readLong();
+					long expected = ((pending != null) ? pendingApplied :
+							applied) + 1;
+					if (seq != expected) {
+						throw new IOException("got update " + seq +
+								" instead of " + expected);
+					}
+					String key = ReplicationLeader.readString(in);
+					Storage target = (pending != null) ? pending :
+							replica.current();
+					if (type == ReplicationLeader.PUT) {
+						target.put(key, ReplicationLeader.readString(in));
+					} else {
+						target.remove(key);
+					}
+					if (pending != null) {
+						pendingApplied = seq;
+					} else {
+						applied = seq;
+					}
+					leaderSeq = Math.max(leaderSeq, seq);
+				} else {
+					throw new IOException("unknown record " + type);
+				}
+				if (pending != null && pendingApplied >= catchUp) {
+					replica.install(pending);
+					epoch = pendingEpoch;
+					applied = pendingApplied;
+					pending = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load the pairs of a snapshot into storage.
+	 * @return the last update of the leader at the end of the snapshot
+	 */
+	private static long load(DataInputStream in, Storage storage)
+			throws IOException {
+		while (true) {
+			byte type = in.readByte();
+			if (type == ReplicationLeader.END) return in.readLong();
+			if (type != ReplicationLeader.PAIR) {
+				throw new IOException("unknown record " + type + " in snapshot");
+			}
+			String key = ReplicationLeader.readString(in);
+			storage.put(key, ReplicationLeader.readString(in));
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public long getApplied() {
+		return applied;
+	}
+
+	public long getLeaderSeq() {
+		return leaderSeq;
+	}
+
+	public long getLag() {
+		return Math.max(0, leaderSeq - applied);
+	}
+
+	public long getSnapshots() {
+		return snapshots;
+	}
+
+	public void promote() {
+		stopped = true;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// following ends either way
+			}
+		}
+		replica.promote();
+	}
+}
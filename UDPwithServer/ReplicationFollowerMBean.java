@@ -0,0 +1,27 @@
+/**
+ * Management interface of ReplicationFollower, registered by TcpMapServer
+ * as TcpMapServer:type=ReplicationFollower,port=N.
+ **/
+
+public interface ReplicationFollowerMBean {
+	/** @return true while connected to the leader */
+	boolean isConnected();
+
+	/** @return the sequence number of the last update applied */
+	long getApplied();
+
+	/** @return the last update of the leader, as the follower heard */
+	long getLeaderSeq();
+
+	/** @return the updates of the leader not applied yet */
+	long getLag();
+
+	/** @return the number of snapshots loaded */
+	long getSnapshots();
+
+	/**
+	 * Stop following and take updates from the connections, to take over
+	 * from a leader that is gone.
+	 */
+	void promote();
+}
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leader side of the replication of TcpMapServer. ReplicatedStorage
+ * appends every update to a ring of the last backlog updates, numbered
+ * from 1 on, and returns without waiting for any follower; every
+ * follower connected to the replication port has a thread of its own
+ * that streams the ring to it from where it stands.
+ *
+ * A follower opens with [long epoch][long seq], the epoch of the leader
+ * it followed and the last update it applied, both 0 at first. If the
+ * epoch is the one of this leader and the updates after seq are still in
+ * the ring, the follower catches up from there. Otherwise it gets a
+ * snapshot: the storage is walked while updates go on, and the ring is
+ * sent after it from the update that was last when the walk began, so
+ * an update the walk saw is applied again, in order, and the follower
+ * ends up with the pairs of the leader. A follower that falls more than
+ * backlog updates behind is disconnected and starts over.
+ *
+ * Records are a type byte followed by
+ *
+ * PUT        [long seq][key][value]
+ * REMOVE     [long seq][key]
+ * SNAPSHOT   [long epoch][long seq], then PAIR [key][value] for every
+ *            pair and END [long seq], seq being the last update by then
+ * HEARTBEAT  [long seq], sent when there was no update for a while
+ *
+ * Strings are [int length][UTF-8 bytes].
+ **/
+
+public class ReplicationLeader implements ReplicationLeaderMBean {
+	// record types
+	static final byte PUT = 1;
+	static final byte REMOVE = 2;
+	static final byte SNAPSHOT = 3;
+	static final byte PAIR = 4;
+	static final byte END = 5;
+	static final byte HEARTBEAT = 6;
+
+	//a follower that got nothing this long is sent a heartbeat
+	static final int HEARTBEAT_MILLIS = 1000;
+	//updates sent to a follower at a time
+	private static final int BATCH = 256;
+
+	private final Storage storage;
+	private final long epoch = new Random().nextLong() | 1;
+	private final String[] keys;
+	private final String[] values;  // null for a remove
+	private final int mask;
+	private long last;              // seq of the last update
+	private int waiting;            // follower threads waiting for one
+	private final AtomicInteger followers = new AtomicInteger();
+	private final LongAdder snapshots = new LongAdder();
+
+	/**
+	 * @param storage holds the pairs, for the snapshots
+	 * @param backlog is the number of updates kept, rounded up to a power
+	 * of two
+	 */
+	public ReplicationLeader(Storage storage, int backlog) {
+		int n = (backlog <= 1) ? 1 : Integer.highestOneBit(backlog - 1) << 1;
+		this.storage = storage;
+		this.keys = new String[n];
+		this.values = new String[n];
+		this.mask = n - 1;
+	}
+
+	/** Serve the followers connecting to listenSock, in daemon threads. */
+	public void listen(ServerSocket listenSock) {
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try {
+					Socket socket = listenSock.accept();
+					Thread follower = new Thread(() -> serve(socket),
+							"ReplicationLeader " + socket.getRemoteSocketAddress());
+					follower.setDaemon(true);
+					follower.start();
+				} catch (IOException e) {
+					System.err.println("ReplicationLeader: " + e);
+					return;
+				}
+			}
+		}, "ReplicationLeader");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Add an update to the ring.
+	 * @param value is null for a remove
+	 * @return its sequence number
+	 */
+	synchronized long append(String key, String value) {
+		long seq = ++last;
+		keys[(int) (seq & mask)] = key;
+		values[(int) (seq & mask)] = value;
+		if (waiting > 0) notifyAll();
+		return seq;
+	}
+
+	/**
+	 * Copy the updates from seq from on, waiting up to millis for one if
+	 * there is none yet.
+	 * @return the number of updates copied, -1 if from is no longer in
+	 * the ring
+	 */
+	private synchronized int read(long from, String[] k, String[] v,
+			long millis) throws InterruptedException {
+		if (last < from) {
+			waiting++;
+			try {
+				wait(millis);
+			} finally {
+				waiting--;
+			}
+		}
+		if (from <= last - keys.length) return -1;
+		int n = (int) Math.max(0, Math.min(k.length, last - from + 1));
+		for (int i = 0; i < n; i++) {
+			k[i] = keys[(int) ((from + i) & mask)];
+			v[i] = values[(int) ((from + i) & mask)];
+		}
+		return n;
+	}
+
+	/** @return true if a follower can go on with update seq from the ring */
+	private synchronized boolean inBacklog(long seq) {
+		return seq > last - keys.length && seq <= last + 1;
+	}
+
+	private void serve(Socket socket) {
+		followers.incrementAndGet();
+		try (Socket s = socket) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+			long theirEpoch = in.readLong();
+			long applied = in.readLong();
+			long from;
+			if (theirEpoch == epoch && inBacklog(applied + 1)) {
+				from = applied + 1;
+			} else {
+				from = snapshot(out) + 1;
+				snapshots.increment();
+			}
+			String[] k = new String[BATCH];
+			String[] v = new String[BATCH];
+			while (true) {
+				int n = read(from, k, v, HEARTBEAT_MILLIS);
+				if (n < 0) {
+					throw new IOException("follower fell more than " +
+							keys.length + " updates behind");
+				}
+				if (n == 0) {
+					out.writeByte(HEARTBEAT);
+					out.writeLong(getSeq());
+				}
+				for (int i = 0; i < n; i++) {
+					out.writeByte((v[i] == null) ? REMOVE : PUT);
+					out.writeLong(from + i);
+					writeString(out, k[i]);
+					if (v[i] != null) writeString(out, v[i]);
+				}
+				from += n;
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("ReplicationLeader: " +
+					socket.getRemoteSocketAddress() + ": " + e);
+		} catch (InterruptedException e) {
+			// the server is going down
+		} finally {
+			followers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Send all pairs as a snapshot.
+	 * @return the update the follower has to go on after
+	 */
+	private long snapshot(DataOutputStream out) throws IOException {
+		long seq = getSeq();
+		out.writeByte(SNAPSHOT);
+		out.writeLong(epoch);
+		out.writeLong(seq);
+		Iterator<Map.Entry<String, String>> pairs = storage.all();
+		while (pairs.hasNext()) {
+			Map.Entry<String, String> pair = pairs.next();
+			out.writeByte(PAIR);
+			writeString(out, pair.getKey());
+			writeString(out, pair.getValue());
+		}
+		out.writeByte(END);
+		out.writeLong(getSeq());
+		return seq;
+	}
+
+	static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public synchronized long getSeq() {
+		return last;
+	}
+
+	public int getFollowers() {
+		return followers.get();
+	}
+
+	public long getSnapshots() {
+		return snapshots.sum();
+	}
+
+	public int getBacklog() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Management interface of ReplicationLeader, registered by TcpMapServer
+ * as TcpMapServer:type=ReplicationLeader,port=N.
+ **/
+
+public interface ReplicationLeaderMBean {
+	/** @return the sequence number of the last update */
+	long getSeq();
+
+	/** @return the number of followers connected */
+	int getFollowers();
+
+	/** @return the number of snapshots sent to followers */
+	long getSnapshots();
+
+	/** @return the number of updates kept for followers that fall behind */
+	int getBacklog();
+}
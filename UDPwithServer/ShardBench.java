@@ -0,0 +1,138 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * usage: ShardBench [ keys ] [ millis ] [ reads ]
+ *
+ * Compare the throughput of concurrent sessions on
+ *
+ * sharded       a ShardedStorage with its default number of shards
+ * concurrent    a HashStorage, on a ConcurrentHashMap
+ * synchronized  a HashMap behind one lock, Collections.synchronizedMap
+ *
+ * with 1, 4, 16 and 64 threads. Every store is filled with keys
+ * key0000000 and up (default 1000000), then every thread gets and puts
+ * random keys for millis milliseconds (default 2000), reads percent of
+ * the operations being gets (default 90). Every store is first run as
+ * long with each number of threads as a warmup. The throughput is
+ * printed in millions of operations per second.
+ **/
+
+public class ShardBench {
+	private static final int[] THREADS = { 1, 4, 16, 64 };
+
+	//ends the timed operations of the workers
+	private static volatile boolean stopped;
+
+	/** The operations timed, on any of the stores. */
+	private interface Store {
+		String get(String key);
+
+		String put(String key, String value);
+	}
+
+	public static void main(String args[]) throws InterruptedException {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		long millis = (args.length > 1) ? Long.parseLong(args[1]) : 2000;
+		int reads = (args.length > 2) ? Integer.parseInt(args[2]) : 90;
+
+		String[] present = new String[keys];
+		for (int i = 0; i < keys; i++) {
+			present[i] = String.format("key%07d", i);
+		}
+
+		System.out.printf("%-13s", "store");
+		for (int threads : THREADS) {
+			System.out.printf(" %9s", threads + " thr");
+		}
+		System.out.println();
+		run("sharded", store(new ShardedStorage()), present, millis, reads);
+		run("concurrent", store(new HashStorage()), present, millis, reads);
+		run("synchronized", store(Collections.synchronizedMap(
+				new HashMap<String, String>())), present, millis, reads);
+	}
+
+	private static Store store(Storage storage) {
+		return new Store() {
+			public String get(String key) {
+				return storage.get(key);
+			}
+
+			public String put(String key, String value) {
+				return storage.put(key, value);
+			}
+		};
+	}
+
+	private static Store store(Map<String, String> map) {
+		return new Store() {
+			public String get(String key) {
+				return map.get(key);
+			}
+
+			public String put(String key, String value) {
+				return map.put(key, value);
+			}
+		};
+	}
+
+	private static void run(String name, Store store, String[] present,
+			long millis, int reads) throws InterruptedException {
+		for (String key : present) store.put(key, "value");
+		for (int threads : THREADS) {
+			measure(store, present, threads, millis, reads);
+		}
+		System.out.printf("%-13s", name);
+		for (int threads : THREADS) {
+			long ops = measure(store, present, threads, millis, reads);
+			System.out.printf(" %9.2f", ops / (millis * 1000.0));
+		}
+		System.out.println();
+	}
+
+	/** @return the number of operations threads made in millis */
+	private static long measure(Store store, String[] present, int threads,
+			long millis, int reads) throws InterruptedException {
+		LongAdder ops = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			long seed = t * 0x9e3779b97f4a7c15L + 1;
+			workers[t] = new Thread(() -> {
+				long x = seed, count = 0, sink = 0;
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				while (!stopped) {
+					// a batch between looks at the flag, xorshift for keys
+					for (int i = 0; i < 256; i++) {
+						x ^= x << 13;
+						x ^= x >>> 7;
+						x ^= x << 17;
+						String key = present[(int) ((x >>> 1) % present.length)];
+						if ((int) ((x >>> 40) % 100) < reads) {
+							sink += store.get(key).length();
+						} else {
+							sink += store.put(key, "value").length();
+						}
+					}
+					count += 256;
+				}
+				ops.add(count);
+				if (sink == 42) System.out.println();
+			});
+			workers[t].start();
+		}
+		stopped = false;
+		start.countDown();
+		Thread.sleep(millis);
+		stopped = true;
+		for (Thread worker : workers) worker.join();
+		return ops.sum();
+	}
+}
@@ -0,0 +1,253 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Storage on a power of two number of shards, each a hash table with its
+ * own StampedLock, picked by the hash of the key. Updates of different
+ * shards never wait for each other, so sessions on all cores make
+ * progress as long as they mostly hit different shards.
+ *
+ * A get first reads its shard without locking, with an optimistic stamp
+ * of StampedLock, and only takes the read lock if an update of the shard
+ * came in between. The tables are built so such a read never loops or
+ * fails, whatever it sees: a chain only ever links to nodes that were
+ * already behind it, and a resize builds new nodes in a new table.
+ *
+ * all takes a snapshot of one shard at a time, as it reaches it, so it
+ * never holds a lock while the pairs are written to a client. A scan or
+ * prefix query looks at every pair like in HashStorage.
+ **/
+
+public class ShardedStorage implements Storage {
+	private final Shard[] shards;
+	private final int shift;    // of the hash bits that pick the shard
+
+	/** A pair of a shard; value is only changed under the write lock. */
+	private static class Node {
+		final int hash;
+		final String key;
+		String value;
+		Node next;
+
+		Node(int hash, String key, String value, Node next) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/** A chained hash table guarded by a StampedLock. */
+	private static class Shard {
+		final StampedLock lock = new StampedLock();
+		Node[] table = new Node[16];
+		int size;
+
+		String get(int hash, String key) {
+			long stamp = lock.tryOptimisticRead();
+			String value = find(hash, key);
+			if (lock.validate(stamp)) return value;
+			// an update came in while reading, read again under the lock
+			stamp = lock.readLock();
+			try {
+				return find(hash, key);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		private String find(int hash, String key) {
+			Node[] t = table;
+			for (Node n = t[hash & (t.length - 1)]; n != null; n = n.next) {
+				if (n.hash == hash && n.key.equals(key)) return n.value;
+			}
+			return null;
+		}
+
+		String put(int hash, String key, String value) {
+			long stamp = lock.writeLock();
+			try {
+				int i = hash & (table.length - 1);
+				for (Node n = table[i]; n != null; n = n.next) {
+					if (n.hash == hash && n.key.equals(key)) {
+						String previous = n.value;
+						n.value = value;
+						return previous;
+					}
+				}
+				table[i] = new Node(hash, key, value, table[i]);
+				if (++size > table.length / 4 * 3) resize();
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		String remove(int hash, String key) {
+			long stamp = lock.writeLock();
+			try {
+				int i = hash & (table.length - 1);
+				Node previous = null;
+				for (Node n = table[i]; n != null; previous = n, n = n.next) {
+					if (n.hash == hash && n.key.equals(key)) {
+						if (previous == null) {
+							table[i] = n.next;
+						} else {
+							previous.next = n.next;
+						}
+						size--;
+						return n.value;
+					}
+				}
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/** Double the table, with new nodes so readers of the old keep going. */
+		private void resize() {
+			Node[] bigger = new Node[table.length * 2];
+			for (Node head : table) {
+				for (Node n = head; n != null; n = n.next) {
+					int i = n.hash & (bigger.length - 1);
+					bigger[i] = new Node(n.hash, n.key, n.value, bigger[i]);
+				}
+			}
+			table = bigger;
+		}
+
+		int size() {
+			long stamp = lock.tryOptimisticRead();
+			int n = size;
+			if (lock.validate(stamp)) return n;
+			stamp = lock.readLock();
+			try {
+				return size;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/** @return a copy of the pairs of the shard */
+		Map.Entry<String, String>[] snapshot() {
+			long stamp = lock.readLock();
+			try {
+				@SuppressWarnings("unchecked")
+				Map.Entry<String, String>[] pairs =
+						(Map.Entry<String, String>[]) new Map.Entry<?, ?>[size];
+				int i = 0;
+				for (Node head : table) {
+					for (Node n = head; n != null; n = n.next) {
+						pairs[i++] = new AbstractMap.SimpleImmutableEntry<>(
+								n.key, n.value);
+					}
+				}
+				return pairs;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/** Shards for four times the processors. */
+	public ShardedStorage() {
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @param shards is rounded up to a power of two */
+	public ShardedStorage(int shards) {
+		int n = (shards <= 1) ? 1 : Integer.highestOneBit(shards - 1) << 1;
+		this.shards = new Shard[n];
+		for (int i = 0; i < n; i++) this.shards[i] = new Shard();
+		this.shift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	/** @return the number of shards */
+	public int shards() {
+		return shards.length;
+	}
+
+	/** The hash code of key with its high bits spread to the low ones. */
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/** The shard of hash, picked by other bits than its table slot. */
+	private Shard shard(int hash) {
+		return shards[(int) (((hash * 0x9e3779b9) & 0xffffffffL) >>> shift)];
+	}
+
+	public String get(String key) {
+		int h = hash(key);
+		return shard(h).get(h, key);
+	}
+
+	public String put(String key, String value) {
+		int h = hash(key);
+		return shard(h).put(h, key, value);
+	}
+
+	public String remove(String key) {
+		int h = hash(key);
+		return shard(h).remove(h, key);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) size += shard.size();
+		return size;
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return new Iterator<Map.Entry<String, String>>() {
+			private int next;                         // next shard to copy
+			private Map.Entry<String, String>[] pairs = shards[0].snapshot();
+			private int i;
+
+			public boolean hasNext() {
+				while (i == pairs.length && next + 1 < shards.length) {
+					pairs = shards[++next].snapshot();
+					i = 0;
+				}
+				return i < pairs.length;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return pairs[i++];
+			}
+		};
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		TreeMap<String, String> matches = new TreeMap<>();
+		for (Shard shard : shards) {
+			for (Map.Entry<String, String> pair : shard.snapshot()) {
+				String key = pair.getKey();
+				if (key.compareTo(from) >= 0 &&
+						(to == null || key.compareTo(to) < 0)) {
+					matches.put(key, pair.getValue());
+				}
+			}
+		}
+		return matches.entrySet().iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		TreeMap<String, String> matches = new TreeMap<>();
+		for (Shard shard : shards) {
+			for (Map.Entry<String, String> pair : shard.snapshot()) {
+				if (pair.getKey().startsWith(prefix)) {
+					matches.put(pair.getKey(), pair.getValue());
+				}
+			}
+		}
+		return matches.entrySet().iterator();
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Storage on a ConcurrentSkipListMap, kept in key order. Point operations
+ * take O(log n) comparisons instead of a hash probe, in exchange a scan
+ * or prefix query only visits the pairs it returns.
+ **/
+
+public class SortedStorage implements Storage {
+	private final ConcurrentSkipListMap<String, String> map =
+			new ConcurrentSkipListMap<>();
+
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	public String put(String key, String value) {
+		return map.put(key, value);
+	}
+
+	public String remove(String key) {
+		return map.remove(key);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Iterator<Map.Entry<String, String>> all() {
+		return map.entrySet().iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		Map<String, String> range = (to == null) ? map.tailMap(from) :
+				(from.compareTo(to) < 0) ? map.subMap(from, to) :
+				map.subMap(from, from);
+		return range.entrySet().iterator();
+	}
+
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, successor(prefix));
+	}
+
+	/**
+	 * @return the smallest string greater than every string starting with
+	 * prefix, or null if there is none
+	 */
+	static String successor(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char) (c + 1);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,69 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage engine behind TcpMapServer, shared by all connections, so an
+ * implementation must be thread-safe. Iterators are weakly consistent:
+ * they never fail because of concurrent updates and return every pair
+ * present for their whole life exactly once.
+ *
+ * An engine that persists updates may answer put and remove before they
+ * are durable; a connection then waits with awaitDurable or whenDurable
+ * for lastUpdate before it sends the answers. The defaults are for an
+ * engine whose updates are as durable as they get once made.
+ **/
+
+public interface Storage {
+	/** @return the value of key, or null if there is none */
+	String get(String key);
+
+	/** @return the previous value of key, or null if there was none */
+	String put(String key, String value);
+
+	/** @return the removed value of key, or null if there was none */
+	String remove(String key);
+
+	/** @return the number of pairs stored */
+	int size();
+
+	/** @return every pair, in no particular order */
+	Iterator<Map.Entry<String, String>> all();
+
+	/**
+	 * @param from is the first key, inclusive
+	 * @param to is the end key, exclusive, or null for no end
+	 * @return the pairs with keys in [from, to), in key order
+	 */
+	Iterator<Map.Entry<String, String>> scan(String from, String to);
+
+	/** @return the pairs whose key starts with prefix, in key order */
+	Iterator<Map.Entry<String, String>> prefix(String prefix);
+
+	/**
+	 * @return true if put and remove must not be called, the connections
+	 * then answer them with an error
+	 */
+	default boolean readOnly() {
+		return false;
+	}
+
+	/**
+	 * @return the sequence number of the last update made by the calling
+	 * thread, 0 if there is none
+	 */
+	default long lastUpdate() {
+		return 0;
+	}
+
+	/** Wait until the updates up to seq are durable. */
+	default void awaitDurable(long seq) {
+	}
+
+	/**
+	 * Run done once the updates up to seq are durable, in some other
+	 * thread, or at once in this one if they already are.
+	 */
+	default void whenDurable(long seq, Runnable done) {
+		done.run();
+	}
+}
@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * usage: StorageBench [ keys ] [ iterations ]
+ *
+ * Compare the cost of the operations of HashStorage, SortedStorage,
+ * ShardedStorage and LsmStorage, the latter in a temporary directory that
+ * is deleted at the end. ShardBench compares them under concurrency.
+ * Both are filled with keys key0000000 and up (default 1000000) and then
+ * timed, after a warmup pass of the same length, on
+ *
+ * get       a lookup of a random present key
+ * miss      a lookup of a random absent key
+ * put       an update of a random present key
+ * prefix    a prefix query matching 100 keys, walked to the end
+ *
+ * iterations is the number of timed operations of each kind (default
+ * 1000000, a ten thousandth of it for prefix). The time per operation is
+ * printed in nanoseconds.
+ **/
+
+public class StorageBench {
+	public static void main(String args[]) throws IOException {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+		String[] present = new String[keys];
+		String[] absent = new String[keys];
+		for (int i = 0; i < keys; i++) {
+			present[i] = String.format("key%07d", i);
+			absent[i] = String.format("nokey%07d", i);
+		}
+		// the first keys of every block of 100, to scan key00001xx etc.
+		String[] prefixes = new String[Math.max(1, keys / 100)];
+		for (int i = 0; i < prefixes.length; i++) {
+			prefixes[i] = present[i * 100].substring(0, 8);
+		}
+
+		System.out.printf("%-8s %10s %10s %10s %12s%n", "storage", "get",
+				"miss", "put", "prefix:100");
+		run("hash", new HashStorage(), present, absent, prefixes, iterations);
+		run("sorted", new SortedStorage(), present, absent, prefixes,
+				iterations);
+		run("sharded", new ShardedStorage(), present, absent, prefixes,
+				iterations);
+		File dir = Files.createTempDirectory("StorageBench").toFile();
+		run("lsm", new LsmStorage(dir, 4 << 20), present, absent, prefixes,
+				iterations);
+		for (File file : dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	private static void run(String name, Storage storage, String[] present,
+			String[] absent, String[] prefixes, int iterations) {
+		for (String key : present) storage.put(key, "value");
+		long[] ns = new long[4];
+		for (int pass = 0; pass < 2; pass++) {
+			Random random = new Random(pass);
+			long sink = 0;
+			long t0 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				String v = storage.get(present[random.nextInt(present.length)]);
+				sink += v.length();
+			}
+			long t1 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				if (storage.get(absent[random.nextInt(absent.length)]) != null) {
+					sink++;
+				}
+			}
+			long t2 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				String v = storage.put(present[random.nextInt(present.length)],
+						"value");
+				sink += v.length();
+			}
+			long t3 = System.nanoTime();
+			int scans = Math.max(1, iterations / 10000);
+			for (int i = 0; i < scans; i++) {
+				Iterator<Map.Entry<String, String>> it =
+						storage.prefix(prefixes[random.nextInt(prefixes.length)]);
+				while (it.hasNext()) sink += it.next().getKey().length();
+			}
+			long t4 = System.nanoTime();
+			// the first pass is the warmup
+			ns[0] = (t1 - t0) / iterations;
+			ns[1] = (t2 - t1) / iterations;
+			ns[2] = (t3 - t2) / iterations;
+			ns[3] = (t4 - t3) / scans;
+			if (sink == 42) System.out.println();
+		}
+		System.out.printf("%-8s %10d %10d %10d %12d%n", name, ns[0], ns[1],
+				ns[2], ns[3]);
+	}
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of TcpMapServer. A client that sends MAGIC as the first
+ * byte of a connection switches it to this protocol, the server confirms
+ * by sending MAGIC back. From then on every request and answer is a frame
+ * [length][byte code][payload], where length counts the code and the
+ * payload. Lengths are varints, 7 bits a byte from the lowest, the high
+ * bit telling another byte follows, so a frame of up to 127 bytes only
+ * costs one byte more than its code and payload; the line protocol spends
+ * a newline and a ':' or two on the same request.
+ *
+ * The payload of a request is [keyLen][key][value], the value being the
+ * rest of the frame. For SCAN the key is the first key and the value is
+ * [toLen + 1, 0 for no end][to][long limit]. The payload of an answer is
+ * the value for VALUE, the key for UPDATED and the message for ERROR.
+ * ALL, SCAN and PREFIX are answered with PAIRS frames holding
+ * [keyLen][key][valLen][value] for every pair, ended by an END frame.
+ *
+ * Keys and values are bytes, mapped one to one to the chars of the stored
+ * strings (ISO-8859-1), so unlike in the text protocol they may hold ':'
+ * and newlines, and are neither split nor trimmed.
+ **/
+
+public class TcpMapBinary {
+	public static final int MAGIC = 0xB1;
+
+	// request codes
+	public static final byte GET = 1;
+	public static final byte PUT = 2;
+	public static final byte REMOVE = 3;
+	public static final byte ALL = 4;
+	public static final byte SCAN = 5;
+	public static final byte PREFIX = 6;
+
+	// answer codes
+	public static final byte OK = 0;
+	public static final byte VALUE = 1;
+	public static final byte UPDATED = 2;
+	public static final byte NO_MATCH = 3;
+	public static final byte ERROR = 4;
+	public static final byte PAIRS = 5;
+	public static final byte END = 6;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Execute the request in frame and write its answer to out.
+	 * @return for ALL, SCAN and PREFIX, the dump the caller has to write
+	 * as the answer instead; null otherwise
+	 */
+	static TcpMapDump process(ByteBuffer frame, Storage storage,
+			OutputStream out) throws IOException {
+		String key, res;
+		byte code = -1;
+		try {
+			code = frame.get();
+			key = string(frame, varint(frame));
+			if (storage.readOnly() && (code == PUT || code == REMOVE)) {
+				frame(out, ERROR, bytes("read only:" + key));
+				return null;
+			}
+			switch (code) {
+				case GET:
+					res = storage.get(key);
+					if (res == null) {
+						frame(out, NO_MATCH, EMPTY);
+					} else {
+						frame(out, VALUE, bytes(res));
+					}
+					return null;
+				case PUT:
+					res = storage.put(key, string(frame, frame.remaining()));
+					frame(out, (res == null) ? OK : UPDATED,
+							(res == null) ? EMPTY : bytes(key));
+					return null;
+				case REMOVE:
+					frame(out, (storage.remove(key) == null) ? NO_MATCH : OK,
+							EMPTY);
+					return null;
+				case ALL:
+					return new TcpMapDump(storage.all(), Long.MAX_VALUE, true);
+				case PREFIX:
+					return new TcpMapDump(storage.prefix(key), Long.MAX_VALUE,
+							true);
+				case SCAN:
+					int toLen = varint(frame) - 1;
+					String to = (toLen < 0) ? null : string(frame, toLen);
+					return new TcpMapDump(storage.scan(key, to),
+							frame.getLong(), true);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			// lengths that do not match the frame
+			frame(out, ERROR, bytes("bad frame for code " + code));
+			return null;
+		}
+		frame(out, ERROR, bytes("unrecognizable input:" + key));
+		return null;
+	}
+
+	/** Write a frame with the given code and payload. */
+	static void frame(OutputStream out, byte code, byte[] payload)
+			throws IOException {
+		frame(out, code, payload, payload.length);
+	}
+
+	/** Write a frame with the given code and the first len payload bytes. */
+	static void frame(OutputStream out, byte code, byte[] payload, int len)
+			throws IOException {
+		header(out, code, len);
+		out.write(payload, 0, len);
+	}
+
+	/** Write the start of a frame with the given code and payload length. */
+	static void header(OutputStream out, byte code, int len)
+			throws IOException {
+		varint(out, len + 1);
+		out.write(code);
+	}
+
+	/** Append a string, prefixed with its length, to out. */
+	static void string(ByteArrayOutputStream out, String s)
+			throws IOException {
+		int len = s.length();
+		varint(out, len);
+		for (int i = 0; i < len; i++) {
+			out.write(s.charAt(i));
+		}
+	}
+
+	/**
+	 * Build a request frame.
+	 * @param value is the value of a put, or the rest of the payload
+	 */
+	public static byte[] request(byte code, String key, byte[] value) {
+		byte[] k = bytes(key);
+		int length = 1 + varintSize(k.length) + k.length + value.length;
+		ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+		varint(frame, length);
+		varint(frame.put(code), k.length);
+		frame.put(k).put(value);
+		return frame.array();
+	}
+
+	/**
+	 * Encode a request of the line protocol, without its newline, as a
+	 * request frame. A put is split on its first two ':' only, so its
+	 * value may hold more.
+	 * @return the frame, a frame the server answers with an error if the
+	 * line is not a request
+	 */
+	public static byte[] encode(String line) {
+		if (line.trim().equals("get all")) {
+			return request(ALL, "", EMPTY);
+		}
+		String[] parts = line.split(":", 3);
+		String command = parts[0].trim();
+		if (parts.length == 2) {
+			String key = parts[1].trim();
+			switch (command) {
+				case "get":
+					return request(GET, key, EMPTY);
+				case "remove":
+					return request(REMOVE, key, EMPTY);
+				case "get range":
+				case "prefix":
+					return request(PREFIX, key, EMPTY);
+			}
+		} else if (parts.length == 3 && command.equals("put")) {
+			return request(PUT, parts[1].trim(), bytes(parts[2].trim()));
+		} else if (command.equals("scan")) {
+			String[] range = line.split(":", -1);
+			if (range.length == 4) {
+				try {
+					String to = range[2].trim();
+					String limit = range[3].trim();
+					return request(SCAN, range[1].trim(), scanRange(
+							to.isEmpty() ? null : to, limit.isEmpty() ?
+							Long.MAX_VALUE : Long.parseLong(limit)));
+				} catch (NumberFormatException e) {
+					// sent as it is below
+				}
+			}
+		}
+		// not a request, the server answers with an error
+		return request((byte) 0, line, EMPTY);
+	}
+
+	/** @return the payload of a SCAN request after its first key */
+	public static byte[] scanRange(String to, long limit) {
+		byte[] t = (to == null) ? EMPTY : bytes(to);
+		int toLen = (to == null) ? 0 : t.length + 1;
+		ByteBuffer range = ByteBuffer.allocate(varintSize(toLen) +
+				t.length + 8);
+		varint(range, toLen);
+		range.put(t).putLong(limit);
+		return range.array();
+	}
+
+	/** Write v, which must not be negative, as a varint. */
+	static void varint(OutputStream out, int v) throws IOException {
+		while (v > 0x7f) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static void varint(ByteBuffer out, int v) {
+		while (v > 0x7f) {
+			out.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	/**
+	 * Read a varint from in.
+	 * @throws IllegalArgumentException if it takes more than 5 bytes
+	 */
+	static int varint(ByteBuffer in) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0) return v;
+		}
+		throw new IllegalArgumentException("varint too long");
+	}
+
+	/** @return the bytes v takes as a varint */
+	static int varintSize(int v) {
+		int size = 1;
+		while ((v >>>= 7) != 0) size++;
+		return size;
+	}
+
+	/** @return the next len bytes of frame as a string */
+	static String string(ByteBuffer frame, int len) {
+		if (len < 0 || len > frame.remaining()) {
+			throw new IllegalArgumentException("bad length " + len);
+		}
+		String s = new String(frame.array(), frame.arrayOffset() +
+				frame.position(), len, StandardCharsets.ISO_8859_1);
+		frame.position(frame.position() + len);
+		return s;
+	}
+
+	static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -1,37 +1,253 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+/**
+ * usage: TcpMapClient serverName [port] [binary] [pipeline [window]]
+ *
+ * Send the lines of stdin to TcpMapServer, up to the first empty line, and
+ * print the answers. By default a line is only sent once the answer to
+ * the previous one came back.
+ *
+ * In binary mode the client speaks the binary protocol of TcpMapBinary:
+ * every line is sent as a request frame and every answer is printed the
+ * way the line protocol writes it. A put line is split on its first two
+ * ':' only, so its value may hold more. Lines the client can not encode
+ * are sent as they are and the server answers them with an error.
+ *
+ * In pipeline mode one thread streams the lines to the server while
+ * another reads the answers, with at most window (default 1000) requests
+ * waiting for their answer. The elapsed time and the number of requests
+ * per second are printed to stderr at the end.
+ **/
 
 public class TcpMapClient {
 	public static void main(String args[]) throws Exception {
 		// connect to remote server default port is 30123
 		int port = 30123;
-		if (args.length > 1) port = Integer.parseInt(args[1]);
+		boolean binary = false, pipeline = false;
+		int window = 1000;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("binary")) {
+				binary = true;
+			} else if (args[i].equals("pipeline")) {
+				pipeline = true;
+			} else if (pipeline) {
+				window = Integer.parseInt(args[i]);
+			} else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
 		Socket sock = new Socket(args[0], port);
-		
-		// create buffered reader & writer for socket's in/out streams
-		BufferedReader  in = new BufferedReader(new InputStreamReader(
-				    	 sock.getInputStream(),"US-ASCII"));
-		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-				    	 sock.getOutputStream(),"US-ASCII"));
+		sock.setTcpNoDelay(true);
+
+		// create the codec for socket's in/out streams
+		Codec codec = binary ? new BinaryCodec(sock) : new TextCodec(sock);
 
 		// create buffered reader for System.in
 		BufferedReader sysin = new BufferedReader(new InputStreamReader(
 					   System.in));
 
-		String line;
-		while (true) {
-			line = sysin.readLine();
-			if (line == null || line.length() == 0) break;
+		if (pipeline) {
+			pipeline(sock, codec, sysin, window);
+		} else {
+			String line;
+			while (true) {
+				line = sysin.readLine();
+				if (line == null || line.length() == 0) break;
 
-			// write line on socket and print reply to System.out
-			out.write(line); out.newLine(); out.flush();
-			String serverAnswer = in.readLine();
-			System.out.println(serverAnswer);
+				// write line on socket and print reply to System.out
+				codec.send(line); codec.flush();
+				String serverAnswer = codec.receive();
+				System.out.println(serverAnswer);
+			}
 		}
 		//close all Readers and sockets
 		sock.close();
-		in.close();
-		out.close();
 		sysin.close();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Stream the lines of sysin to the server from a writer thread and
+	 * print the answers as they come back, keeping at most window
+	 * requests in flight.
+	 */
+	private static void pipeline(Socket sock, Codec codec,
+			BufferedReader sysin, int window) throws Exception {
+		Semaphore inFlight = new Semaphore(Math.max(1, window));
+		Exception[] failure = new Exception[1];
+		long start = System.nanoTime();
+
+		Thread writer = new Thread(() -> {
+			try {
+				String line;
+				while ((line = sysin.readLine()) != null && line.length() > 0) {
+					// flush what was written before waiting for the window
+					if (!inFlight.tryAcquire()) {
+						codec.flush();
+						inFlight.acquire();
+					}
+					codec.send(line);
+					if (!sysin.ready()) codec.flush();
+				}
+				codec.flush();
+				// the server closes the connection after the last answer
+				sock.shutdownOutput();
+			} catch (Exception e) {
+				failure[0] = e;
+				try {
+					sock.close();
+				} catch (IOException ignored) {
+					// the reader stops on the closed socket
+				}
+			}
+		}, "TcpMapClient-writer");
+		writer.start();
+
+		// print the answers, in order, as they come back
+		PrintStream answers = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+		long count = 0;
+		try {
+			String serverAnswer;
+			while ((serverAnswer = codec.receive()) != null) {
+				answers.println(serverAnswer);
+				count++;
+				inFlight.release();
+			}
+		} catch (IOException e) {
+			if (failure[0] == null) failure[0] = e;
+		}
+		answers.flush();
+		writer.join();
+		if (failure[0] != null) {
+			System.err.println("Error: " + failure[0]);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.err.printf("%d requests in %.3f s, %.0f ops/s%n", count,
+				elapsed, count / elapsed);
+	}
+
+	/** Sends request lines and receives answer lines, in some protocol. */
+	private interface Codec {
+		/** Buffer the request of a line, without its newline. */
+		void send(String line) throws IOException;
+
+		/** Send the buffered requests. */
+		void flush() throws IOException;
+
+		/** @return the next answer as a line, or null at the end */
+		String receive() throws IOException;
+	}
+
+	/** The line protocol, lines go to the server as they are. */
+	private static class TextCodec implements Codec {
+		private final BufferedReader in;
+		private final BufferedWriter out;
+
+		TextCodec(Socket sock) throws IOException {
+			in = new BufferedReader(new InputStreamReader(
+					sock.getInputStream(), "US-ASCII"));
+			out = new BufferedWriter(new OutputStreamWriter(
+					sock.getOutputStream(), "US-ASCII"));
+		}
+
+		public void send(String line) throws IOException {
+			out.write(line); out.newLine();
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public String receive() throws IOException {
+			return in.readLine();
+		}
+	}
+
+	/** The binary protocol, lines are encoded as request frames. */
+	private static class BinaryCodec implements Codec {
+		private final DataInputStream in;
+		private final OutputStream out;
+		private boolean confirmed;  // the server sent MAGIC back
+
+		BinaryCodec(Socket sock) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					sock.getInputStream(), 1 << 16));
+			out = new BufferedOutputStream(sock.getOutputStream(), 1 << 16);
+			// sent along with the first request
+			out.write(TcpMapBinary.MAGIC);
+		}
+
+		public void send(String line) throws IOException {
+			out.write(TcpMapBinary.encode(line));
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public String receive() throws IOException {
+			if (!confirmed) {
+				int magic = in.read();
+				if (magic < 0) return null;
+				if (magic != TcpMapBinary.MAGIC) {
+					throw new IOException("server does not speak binary");
+				}
+				confirmed = true;
+			}
+			StringBuilder pairs = new StringBuilder();
+			while (true) {
+				int length = readLength();
+				if (length < 0) return null;
+				ByteBuffer frame = ByteBuffer.wrap(new byte[length]);
+				in.readFully(frame.array());
+				byte code = frame.get();
+				String payload;
+				switch (code) {
+					case TcpMapBinary.OK:
+						return "Ok";
+					case TcpMapBinary.NO_MATCH:
+						return "no match";
+					case TcpMapBinary.VALUE:
+					case TcpMapBinary.UPDATED:
+					case TcpMapBinary.ERROR:
+						payload = TcpMapBinary.string(frame, frame.remaining());
+						return ((code == TcpMapBinary.VALUE) ? "ok:" :
+								(code == TcpMapBinary.UPDATED) ? "updated:" :
+								"Error:") + payload;
+					case TcpMapBinary.PAIRS:
+						while (frame.hasRemaining()) {
+							if (pairs.length() > 0) pairs.append("::");
+							pairs.append(TcpMapBinary.string(frame,
+									TcpMapBinary.varint(frame)));
+							pairs.append(':');
+							pairs.append(TcpMapBinary.string(frame,
+									TcpMapBinary.varint(frame)));
+						}
+						break;
+					case TcpMapBinary.END:
+						return pairs.toString();
+					default:
+						throw new IOException("bad answer code " + code);
+				}
+			}
+		}
+
+		/** @return the varint length of the next frame, -1 at the end */
+		private int readLength() throws IOException {
+			int length = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					if (shift == 0) return -1;
+					throw new EOFException("frame length cut short");
+				}
+				length |= (b & 0x7f) << shift;
+				if (b < 0x80) return length;
+			}
+			throw new IOException("frame length too long");
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits and counters of the connections of TcpMapServer, shared by all
+ * engines.
+ *
+ * A connection that sends no request and takes no answer bytes for
+ * idleMillis is closed. Blocking sessions time out their reads; a
+ * watchdog thread closes the socket of a session whose write has been
+ * stuck that long, which would otherwise hold the thread of the session,
+ * the only one of the serial engine, forever.
+ *
+ * A connection whose client does not take its answers is not read until
+ * it does, so its requests wait in the client and the network instead of
+ * in the server. A blocking session stops reading while it is stuck
+ * writing; the nio engine keeps the answers the socket did not take, at
+ * most maxOut bytes plus the answer that crossed the limit, and stops
+ * reading until they are written. Every wait for the socket of
+ * PAUSE_NANOS or more counts as a backpressure pause.
+ **/
+
+public class TcpMapConnections implements TcpMapConnectionsMBean {
+	//a wait for the socket this long counts as a pause
+	static final long PAUSE_NANOS = 10000000;
+	//how often idle connections and stuck writes are looked for
+	static final long CHECK_MILLIS = 1000;
+
+	/** Time without progress a connection is closed after, 0 for none. */
+	public final long idleMillis;
+	/** Answers a connection may have waiting for the socket. */
+	public final int maxOut;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder closed = new LongAdder();
+	private final LongAdder idleTimeouts = new LongAdder();
+	private final LongAdder writeTimeouts = new LongAdder();
+	private final LongAdder pauses = new LongAdder();
+	private final LongAdder pausedConnections = new LongAdder();
+	private final LongAdder limitHits = new LongAdder();
+	// blocking sessions watched for stuck writes
+	private final Set<TcpMapSession> sessions = ConcurrentHashMap.newKeySet();
+	private Thread watchdog;
+
+	public TcpMapConnections(long idleMillis, int maxOut) {
+		this.idleMillis = idleMillis;
+		this.maxOut = maxOut;
+	}
+
+	public void opened() {
+		accepted.increment();
+	}
+
+	public void closed() {
+		closed.increment();
+	}
+
+	public void idleTimeout() {
+		idleTimeouts.increment();
+	}
+
+	public void writeTimeout() {
+		writeTimeouts.increment();
+	}
+
+	/**
+	 * Count a backpressure pause of a connection.
+	 * @param earlier is the number of earlier pauses of the connection
+	 */
+	public void paused(long earlier) {
+		pauses.increment();
+		if (earlier == 0) pausedConnections.increment();
+	}
+
+	public void limitHit() {
+		limitHits.increment();
+	}
+
+	/** Watch the writes of a blocking session, until unwatch. */
+	synchronized void watch(TcpMapSession session) {
+		if (idleMillis <= 0) return;
+		sessions.add(session);
+		if (watchdog == null) {
+			watchdog = new Thread(this::watchLoop, "TcpMapConnections-watchdog");
+			watchdog.setDaemon(true);
+			watchdog.start();
+		}
+	}
+
+	void unwatch(TcpMapSession session) {
+		sessions.remove(session);
+	}
+
+	private void watchLoop() {
+		while (true) {
+			try {
+				Thread.sleep(Math.min(CHECK_MILLIS, idleMillis));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			for (TcpMapSession session : sessions) {
+				if (session.abortStuckWrite(now, idleMillis * 1000000)) {
+					writeTimeout();
+				}
+			}
+		}
+	}
+
+	public long getOpen() {
+		return accepted.sum() - closed.sum();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getIdleTimeouts() {
+		return idleTimeouts.sum();
+	}
+
+	public long getWriteTimeouts() {
+		return writeTimeouts.sum();
+	}
+
+	public long getBackpressurePauses() {
+		return pauses.sum();
+	}
+
+	public long getPausedConnections() {
+		return pausedConnections.sum();
+	}
+
+	public long getOutputLimitHits() {
+		return limitHits.sum();
+	}
+}
@@ -0,0 +1,27 @@
+/**
+ * Management interface of TcpMapConnections, registered by TcpMapServer as
+ * TcpMapServer:type=Connections,port=N.
+ **/
+
+public interface TcpMapConnectionsMBean {
+	/** @return the number of connections open now */
+	long getOpen();
+
+	long getAccepted();
+
+	/** @return connections closed for sending nothing for too long */
+	long getIdleTimeouts();
+
+	/** @return connections closed for taking no answer bytes for too long */
+	long getWriteTimeouts();
+
+	/** @return how often a connection stopped being read, its client not
+	 * taking the answers */
+	long getBackpressurePauses();
+
+	/** @return the number of connections that were paused at least once */
+	long getPausedConnections();
+
+	/** @return how often answering stopped at the outbound byte limit */
+	long getOutputLimitHits();
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Answer to get all, get range, scan and prefix: the pairs of a Storage
+ * iterator as key:value separated by "::" on one line. The pairs are
+ * written straight from the iterator, a chunk at a time, so the answer
+ * is never built in memory and an event loop can interleave it with
+ * other connections.
+ *
+ * On a binary connection the pairs are written as PAIRS frames of about a
+ * chunk each, ended by an END frame (see TcpMapBinary).
+ **/
+
+public class TcpMapDump {
+	private final Iterator<Map.Entry<String, String>> entries;
+	private long limit;         // pairs still to write
+	private boolean first = true;
+	// pairs of the next PAIRS frame, on a binary connection
+	private final ByteArrayOutputStream frame;
+
+	/**
+	 * @param entries are the pairs to write
+	 * @param limit is the largest number of pairs to write
+	 */
+	public TcpMapDump(Iterator<Map.Entry<String, String>> entries,
+			long limit) {
+		this(entries, limit, false);
+	}
+
+	/**
+	 * @param binary is set to write the pairs as binary frames
+	 */
+	public TcpMapDump(Iterator<Map.Entry<String, String>> entries,
+			long limit, boolean binary) {
+		this.entries = entries;
+		this.limit = limit;
+		this.frame = binary ? new ByteArrayOutputStream() : null;
+	}
+
+	/**
+	 * Write the next pairs to out, until at least chunk bytes were written
+	 * or the dump is complete.
+	 * @return true when the dump is complete, its newline included
+	 */
+	public boolean writeTo(OutputStream out, long chunk) throws IOException {
+		if (frame != null) return writeFramesTo(out, chunk);
+		long written = 0;
+		while (limit > 0 && entries.hasNext()) {
+			Map.Entry<String, String> entry = entries.next();
+			limit--;
+			byte[] pair = ((first ? "" : "::") + entry.getKey() + ":" +
+					entry.getValue()).getBytes(StandardCharsets.US_ASCII);
+			first = false;
+			out.write(pair);
+			written += pair.length;
+			if (written >= chunk) return false;
+		}
+		out.write('\n');
+		return true;
+	}
+
+	/**
+	 * Write the next pairs to out as one PAIRS frame of at least chunk
+	 * bytes, or the last pairs and the END frame.
+	 * @return true when the dump is complete, its END frame included
+	 */
+	private boolean writeFramesTo(OutputStream out, long chunk)
+			throws IOException {
+		frame.reset();
+		while (limit > 0 && entries.hasNext()) {
+			Map.Entry<String, String> entry = entries.next();
+			limit--;
+			TcpMapBinary.string(frame, entry.getKey());
+			TcpMapBinary.string(frame, entry.getValue());
+			if (frame.size() >= chunk) break;
+		}
+		if (frame.size() > 0) {
+			TcpMapBinary.header(out, TcpMapBinary.PAIRS, frame.size());
+			frame.writeTo(out);
+			if (frame.size() >= chunk) return false;
+		}
+		TcpMapBinary.header(out, TcpMapBinary.END, 0);
+		return true;
+	}
+}
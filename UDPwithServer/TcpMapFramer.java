@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the byte stream of a TcpMapServer connection into requests, each
+ * ending with a newline. Bytes are read into a buffer that grows as a
+ * request needs, so a request may span any number of reads and may be
+ * longer than the buffer; next() hands out the complete requests and
+ * keeps the incomplete one for the next read.
+ *
+ * A connection that speaks the binary protocol (see TcpMapBinary) is split
+ * with nextFrame() instead, into frames prefixed with their length.
+ **/
+
+public class TcpMapFramer {
+	//longest request accepted
+	public static final int MAX_REQUEST = 1 << 20;
+	//bytes read at a time
+	private static final int READ_SIZE = 16 << 10;
+
+	private byte[] buf = new byte[READ_SIZE];
+	private int start;          // first byte not handed out yet
+	private int scanned;        // bytes before it hold no newline
+	private int end;            // end of the bytes read
+
+	/**
+	 * Read what the stream has, blocking until at least one byte comes.
+	 * @return the number of bytes read, -1 at the end of the stream
+	 */
+	public int read(InputStream in) throws IOException {
+		makeRoom();
+		int n = in.read(buf, end, buf.length - end);
+		if (n > 0) end += n;
+		return n;
+	}
+
+	/**
+	 * Read what the channel has.
+	 * @return the number of bytes read, -1 at the end of the stream
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+		if (n > 0) end += n;
+		return n;
+	}
+
+	/**
+	 * @return the next complete request, with its newline, or null if there
+	 * is none
+	 * @throws IOException if the incomplete request is longer than
+	 * MAX_REQUEST
+	 */
+	public String next() throws IOException {
+		for (int i = scanned; i < end; i++) {
+			if (buf[i] != '\n') continue;
+			String request = new String(buf, start, i + 1 - start,
+					StandardCharsets.US_ASCII);
+			start = scanned = i + 1;
+			return request;
+		}
+		scanned = end;
+		if (end - start > MAX_REQUEST) {
+			throw new IOException("request longer than " + MAX_REQUEST);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the next complete binary frame, without its length, or null
+	 * if there is none; the frame is only valid until the next read
+	 * @throws IOException if the frame length is longer than MAX_REQUEST
+	 */
+	public ByteBuffer nextFrame() throws IOException {
+		// the length is a varint, see TcpMapBinary
+		int length = 0, i = start;
+		for (int shift = 0; ; shift += 7) {
+			if (i == end) return null;
+			byte b = buf[i++];
+			length |= (b & 0x7f) << shift;
+			if (b >= 0) break;
+			if (shift == 21) {
+				throw new IOException("frame longer than " + MAX_REQUEST);
+			}
+		}
+		if (length > MAX_REQUEST) {
+			throw new IOException("frame longer than " + MAX_REQUEST);
+		}
+		if (end - i < length) return null;
+		ByteBuffer frame = ByteBuffer.wrap(buf, i, length).slice();
+		start = scanned = i + length;
+		return frame;
+	}
+
+	/** @return the first byte not handed out yet, -1 if there is none */
+	public int peek() {
+		return (start < end) ? buf[start] & 0xff : -1;
+	}
+
+	/** Drop the first byte not handed out yet, there must be one. */
+	public void skip() {
+		start++;
+		scanned = Math.max(scanned, start);
+	}
+
+	/**
+	 * Take out the bytes not handed out yet, leaving the framer empty.
+	 * @return the bytes, or null if there are none
+	 */
+	public byte[] drain() {
+		byte[] rest = (start < end) ? Arrays.copyOfRange(buf, start, end) : null;
+		start = scanned = end = 0;
+		return rest;
+	}
+
+	/** Put back bytes taken out by drain(), the framer must be empty. */
+	public void fill(byte[] rest) {
+		if (rest == null) return;
+		if (buf.length < rest.length + READ_SIZE) {
+			buf = new byte[rest.length + READ_SIZE];
+		}
+		System.arraycopy(rest, 0, buf, 0, rest.length);
+		end = rest.length;
+	}
+
+	/** Make room for READ_SIZE more bytes after end. */
+	private void makeRoom() {
+		if (start == end) {
+			start = scanned = end = 0;
+		}
+		if (buf.length - end >= READ_SIZE) return;
+		int pending = end - start;
+		if (pending + READ_SIZE > buf.length) {
+			buf = Arrays.copyOfRange(buf, start, start +
+					Math.max(pending + READ_SIZE, buf.length * 2));
+		} else {
+			System.arraycopy(buf, start, buf, 0, pending);
+		}
+		scanned -= start;
+		start = 0;
+		end = pending;
+	}
+}
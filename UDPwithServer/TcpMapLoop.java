@@ -0,0 +1,370 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One event loop of the nio engine of TcpMapServer. A loop owns a Selector
+ * and serves the non-blocking connections registered with it, so a
+ * handful of loops serve any number of connections without a thread each.
+ * The first loop also accepts new connections and hands them out to the
+ * loops in turn.
+ *
+ * Requests end with a newline. A connection keeps no buffers while it is
+ * idle: the bytes read are framed by a TcpMapFramer of the loop and only
+ * an incomplete request is kept by the connection, likewise only the part
+ * of the answers the socket did not take. While such a part is pending
+ * the connection is not read, so a client that does not read its answers
+ * can not make the server buffer without bound. For the same reason the
+ * answers to one read are produced maxOut bytes of TcpMapConnections at a
+ * time: a get all dump, or the requests after it, are resumed once the
+ * socket has taken what came before. Connections that make no progress
+ * for the idle time of TcpMapConnections are closed.
+ *
+ * Answers to updates are held back until the storage made the updates
+ * durable, without holding up the loop: the connection waits with no
+ * interest in the selector and is woken up by Storage.whenDurable.
+ *
+ * The first byte of a connection tells its protocol: TcpMapBinary.MAGIC
+ * switches it to binary frames, anything else is the first text request.
+ **/
+
+public class TcpMapLoop implements Runnable {
+	private final Selector selector;
+	private final Storage storage;
+	private final TcpMapConnections limits;
+	private long lastCheck;     // last look for idle connections
+	private final ConcurrentLinkedQueue<SocketChannel> registering =
+			new ConcurrentLinkedQueue<>();
+	// connections whose answers wait for durable updates no more
+	private final ConcurrentLinkedQueue<SelectionKey> durable =
+			new ConcurrentLinkedQueue<>();
+	private final TcpMapFramer framer = new TcpMapFramer();
+	private ByteBuffer out;
+	// appends to out, growing it for an answer that does not fit
+	private final OutputStream sink = new OutputStream() {
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] bytes, int off, int len) {
+			if (out.remaining() < len) {
+				ByteBuffer bigger = ByteBuffer.allocate(
+						Math.max(out.capacity() * 2, out.position() + len));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(bytes, off, len);
+		}
+	};
+
+	// set by accept(), on every loop
+	private TcpMapLoop acceptor;
+	private Semaphore connections;
+	// only used on the accepting loop
+	private ServerSocketChannel listenChannel;
+	private SelectionKey acceptKey;
+	private TcpMapLoop[] loops;
+	private int nextLoop;
+	private volatile boolean acceptPaused;
+
+	/** The state of one connection. */
+	private static class Connection {
+		final SocketChannel channel;
+		byte[] pendingIn;       // requests not answered yet, or null
+		ByteBuffer pendingOut;  // answers not written yet, or null
+		TcpMapDump dump;        // get all being written, or null
+		boolean more;           // pendingIn may hold complete requests
+		boolean negotiated;     // the first byte was read
+		boolean binary;         // speaks the binary protocol
+		long waitingSince;      // nanoTime it began to wait for the socket
+		long pauses;            // waits of PAUSE_NANOS or more
+		long lastActive = System.currentTimeMillis();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	public TcpMapLoop(Storage storage, TcpMapConnections limits)
+			throws IOException {
+		this.selector = Selector.open();
+		this.storage = storage;
+		this.limits = limits;
+		this.out = ByteBuffer.allocate(Math.max(1, limits.maxOut));
+	}
+
+	/**
+	 * Make this loop accept the connections of listenChannel.
+	 * @param loops are the loops to hand connections to, this one included
+	 * @param connections holds a permit for every connection that may be
+	 * open at once; accepting pauses while there is none
+	 */
+	public void accept(ServerSocketChannel listenChannel, TcpMapLoop[] loops,
+			Semaphore connections) throws IOException {
+		this.listenChannel = listenChannel;
+		this.loops = loops;
+		for (TcpMapLoop loop : loops) {
+			loop.acceptor = this;
+			loop.connections = connections;
+		}
+		listenChannel.configureBlocking(false);
+		acceptKey = listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/** Hand a new connection to this loop, from any thread. */
+	private void add(SocketChannel channel) {
+		registering.add(channel);
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				// wake up in time to close idle connections
+				selector.select((limits.idleMillis > 0) ? Math.min(
+						TcpMapConnections.CHECK_MILLIS, limits.idleMillis) : 0);
+				registerNew();
+				releaseDurable();
+				if (limits.idleMillis > 0) closeIdle();
+				if (acceptPaused && connections.availablePermits() > 0) {
+					acceptPaused = false;
+					acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						acceptAll();
+						continue;
+					}
+					Connection c = (Connection) key.attachment();
+					try {
+						if (key.isWritable()) flush(key, c);
+						if (key.isValid() && key.isReadable()) serve(key, c, true);
+					} catch (IOException e) {
+						close(key);
+					} catch (RuntimeException e) {
+						// a request the server could not handle
+						System.err.println("TcpMapLoop: " + e);
+						close(key);
+					}
+				}
+				selector.selectedKeys().clear();
+			} catch (IOException e) {
+				System.err.println("TcpMapLoop: " + e);
+			}
+		}
+	}
+
+	private void registerNew() throws IOException {
+		SocketChannel channel;
+		while ((channel = registering.poll()) != null) {
+			channel.register(selector, SelectionKey.OP_READ,
+					new Connection(channel));
+			limits.opened();
+		}
+	}
+
+	/** Close the connections that made no progress for the idle time. */
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < Math.min(TcpMapConnections.CHECK_MILLIS,
+				limits.idleMillis)) {
+			return;
+		}
+		lastCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			// the accepting key has no connection
+			if (!key.isValid() || !(key.attachment() instanceof Connection)) {
+				continue;
+			}
+			Connection c = (Connection) key.attachment();
+			if (now - c.lastActive > limits.idleMillis) {
+				if (c.waitingSince != 0) {
+					waited(c);
+					limits.writeTimeout();
+				} else {
+					limits.idleTimeout();
+				}
+				close(key);
+			}
+		}
+	}
+
+	/** Write the answers whose updates became durable. */
+	private void releaseDurable() {
+		SelectionKey key;
+		while ((key = durable.poll()) != null) {
+			if (!key.isValid()) continue;
+			((Connection) key.attachment()).waitingSince = System.nanoTime();
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/** Accept the waiting connections, as long as there are permits. */
+	private void acceptAll() throws IOException {
+		while (true) {
+			if (!connections.tryAcquire()) {
+				// resumed by close() once a connection goes away
+				acceptKey.interestOps(0);
+				acceptPaused = true;
+				// a connection may have gone away in the meantime
+				if (connections.availablePermits() > 0) selector.wakeup();
+				return;
+			}
+			SocketChannel channel = listenChannel.accept();
+			if (channel == null) {
+				connections.release();
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			loops[nextLoop++ % loops.length].add(channel);
+		}
+	}
+
+	/**
+	 * Answer the complete requests of the connection, reading what it has
+	 * sent first if read is set. About maxOut bytes of answers are
+	 * produced at most; when more are due, c.more is set and serving goes
+	 * on once the socket has taken them.
+	 */
+	private void serve(SelectionKey key, Connection c, boolean read)
+			throws IOException {
+		framer.fill(c.pendingIn);
+		c.pendingIn = null;
+		if (read) {
+			int n = framer.read(c.channel);
+			if (n < 0) {
+				framer.drain();
+				close(key);
+				return;
+			}
+			if (n > 0) c.lastActive = System.currentTimeMillis();
+		}
+
+		out.clear();
+		c.more = false;
+		long lastUpdate = storage.lastUpdate();
+		if (!c.negotiated && framer.peek() >= 0) {
+			// the first byte tells which protocol the client speaks
+			c.negotiated = true;
+			c.binary = framer.peek() == TcpMapBinary.MAGIC;
+			if (c.binary) {
+				framer.skip();
+				sink.write(TcpMapBinary.MAGIC);
+			}
+		}
+		try {
+			while (true) {
+				if (c.dump != null) {
+					if (!c.dump.writeTo(sink, limits.maxOut - out.position())) {
+						c.more = true;
+						limits.limitHit();
+						break;
+					}
+					c.dump = null;
+				}
+				if (out.position() >= limits.maxOut) {
+					c.more = true;
+					limits.limitHit();
+					break;
+				}
+				if (c.binary) {
+					ByteBuffer frame = framer.nextFrame();
+					if (frame == null) break;
+					c.dump = TcpMapBinary.process(frame, storage, sink);
+				} else {
+					String request = framer.next();
+					if (request == null) break;
+					c.dump = TcpMapSession.process(request, storage, sink);
+				}
+			}
+		} finally {
+			c.pendingIn = framer.drain();
+		}
+
+		out.flip();
+		if (storage.lastUpdate() != lastUpdate) {
+			// answers to updates go out once the updates are durable, the
+			// connection is left alone until then
+			c.pendingOut = ByteBuffer.allocate(out.remaining());
+			c.pendingOut.put(out).flip();
+			key.interestOps(0);
+			storage.whenDurable(storage.lastUpdate(), () -> {
+				durable.add(key);
+				selector.wakeup();
+			});
+			return;
+		}
+		if (out.hasRemaining() && c.channel.write(out) > 0) {
+			c.lastActive = System.currentTimeMillis();
+		}
+		if (out.hasRemaining()) {
+			// keep the rest and stop reading until the client catches up
+			c.pendingOut = ByteBuffer.allocate(out.remaining());
+			c.pendingOut.put(out).flip();
+		}
+		if (c.pendingOut != null || c.more) {
+			c.waitingSince = System.nanoTime();
+			key.interestOps(SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Write pending answers and, once they are all out, go on with the
+	 * requests waiting for them or read again.
+	 */
+	private void flush(SelectionKey key, Connection c) throws IOException {
+		waited(c);
+		if (c.pendingOut != null) {
+			if (c.channel.write(c.pendingOut) > 0) {
+				c.lastActive = System.currentTimeMillis();
+			}
+			if (c.pendingOut.hasRemaining()) {
+				c.waitingSince = System.nanoTime();
+				return;
+			}
+			c.pendingOut = null;
+		}
+		if (c.more) {
+			serve(key, c, false);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * End a wait for the socket, counting a pause if it was long enough
+	 * for the client to be behind rather than the loop.
+	 */
+	private void waited(Connection c) {
+		if (c.waitingSince != 0 && System.nanoTime() - c.waitingSince >=
+				TcpMapConnections.PAUSE_NANOS) {
+			limits.paused(c.pauses++);
+		}
+		c.waitingSince = 0;
+	}
+
+	private void close(SelectionKey key) {
+		if (!key.isValid()) return;
+		limits.closed();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing left to do with this connection
+		}
+		// let the accepting loop take a new connection
+		connections.release();
+		if (acceptor.acceptPaused) acceptor.selector.wakeup();
+	}
+}
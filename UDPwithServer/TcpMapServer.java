@@ -1,109 +1,278 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * usage: TcpMapServer [bindAddress [port]] [engine=serial|threads|nio]
+ *                     [maxConns=N] [loops=N]
+ *                     [storage=hash|sorted|sharded|lsm] [shards=N]
+ *                     [dir=path] [memtable=bytes] [batch=N] [linger=micros]
+ *                     [idle=seconds] [maxOut=bytes]
+ *                     [replicate=port] [replBacklog=N] [follow=host:port]
+ *
+ * TCP key/value server. Every connection is served by a TcpMapSession,
+ * all sessions share one Storage.
+ *
+ * engine    serial serves one connection at a time in the accepting thread,
+ *           so a client waits until the previous one disconnects; threads
+ *           (the default) serves every connection in its own thread of a
+ *           bounded pool; nio serves all connections from a few
+ *           TcpMapLoop threads with non-blocking channels, so idle
+ *           connections cost no thread
+ * maxConns  is the number of connections served at once by the threads
+ *           and nio engines (default 1024); further clients wait in the
+ *           listen backlog until a connection closes
+ * loops     is the number of event loops of the nio engine (default one
+ *           per processor)
+ * storage   hash (the default) keeps the pairs in a ConcurrentHashMap,
+ *           sorted in a ConcurrentSkipListMap, which answers scan and
+ *           prefix without looking at every pair; sharded in the hash
+ *           tables of a ShardedStorage, each with its own lock; lsm keeps
+ *           them on disk in an LsmStorage, so they survive a restart
+ * shards    is the number of shards of the sharded storage, rounded up to
+ *           a power of two (default four per processor)
+ * dir       is the directory of the lsm storage (default tcpmap-data)
+ * memtable  is about the memory the lsm storage fills with updates
+ *           before it writes them to a segment (default 4194304)
+ * batch     the lsm storage forces the updates of all connections to disk
+ *           in batches, the answers to them wait until then; a batch
+ *           lingers until it holds batch updates (default 1000), at most
+ * linger    microseconds (default 0, a batch is committed as soon as the
+ *           previous one is on disk). The commit time and batch size are
+ *           in the MBean TcpMapServer:type=GroupCommitter,port=N
+ * idle      closes a connection that sends nothing and takes no answer
+ *           bytes for that many seconds (default 300, 0 for never)
+ * maxOut    is the most answer bytes the nio engine keeps for a client
+ *           that does not read them (default 65536), the connection is not
+ *           read until they are written. Timeouts and backpressure are
+ *           counted in the MBean TcpMapServer:type=Connections,port=N
+ * replicate streams every update to the followers connecting to port,
+ *           see ReplicationLeader; updates are answered without waiting
+ *           for any follower
+ * replBacklog is the number of updates kept for followers that lost their
+ *           connection (default 65536), a follower further behind gets a
+ *           snapshot instead
+ * follow    makes the server a follower of the leader whose replicate
+ *           port is host:port. It keeps the pairs of the leader in the
+ *           storage given by storage, which must be one kept in memory,
+ *           answers get and the like, and answers put and remove with an
+ *           error. Promoting it through the MBean
+ *           TcpMapServer:type=ReplicationFollower,port=N makes it take
+ *           updates, to take over from a leader that is gone
+ *
+ * Every engine speaks the line protocol, and the binary protocol of
+ * TcpMapBinary to clients that open with its magic byte.
+ **/
 
 public class TcpMapServer {
+	//stack size of a session thread, they only need a few frames
+	private static final long STACK_SIZE = 256 << 10;
+
 	public static void main(String args[]) throws Exception {
 		// process arguments
 		int port = 30123;
-		if (args.length > 1) port = Integer.parseInt(args[1]);
 		InetAddress bindAdr = null;
-		if (args.length > 0) bindAdr = InetAddress.getByName(args[0]);
+		String engine = "threads";
+		int maxConns = 1024;
+		int loops = Runtime.getRuntime().availableProcessors();
+		String storageName = "hash";
+		int shards = 4 * Runtime.getRuntime().availableProcessors();
+		String dir = "tcpmap-data";
+		long memtable = 4 << 20;
+		int batch = 1000;
+		long linger = 0;
+		long idle = 300;
+		int maxOut = 64 << 10;
+		int replicate = 0;
+		int replBacklog = 1 << 16;
+		String follow = null;
+		int positional = 0;
+		for (String arg : args) {
+			if (arg.startsWith("engine=")) {
+				engine = arg.substring(7);
+			} else if (arg.startsWith("maxConns=")) {
+				maxConns = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("loops=")) {
+				loops = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("storage=")) {
+				storageName = arg.substring(8);
+			} else if (arg.startsWith("shards=")) {
+				shards = Integer.parseInt(arg.substring(7));
+			} else if (arg.startsWith("dir=")) {
+				dir = arg.substring(4);
+			} else if (arg.startsWith("memtable=")) {
+				memtable = Long.parseLong(arg.substring(9));
+			} else if (arg.startsWith("batch=")) {
+				batch = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("linger=")) {
+				linger = Long.parseLong(arg.substring(7));
+			} else if (arg.startsWith("idle=")) {
+				idle = Long.parseLong(arg.substring(5));
+			} else if (arg.startsWith("maxOut=")) {
+				maxOut = Integer.parseInt(arg.substring(7));
+			} else if (arg.startsWith("replicate=")) {
+				replicate = Integer.parseInt(arg.substring(10));
+			} else if (arg.startsWith("replBacklog=")) {
+				replBacklog = Integer.parseInt(arg.substring(12));
+			} else if (arg.startsWith("follow=")) {
+				follow = arg.substring(7);
+			} else if (positional++ == 0) {
+				bindAdr = InetAddress.getByName(arg);
+			} else {
+				port = Integer.parseInt(arg);
+			}
+		}
 
-		// create and bind listening socket
-		ServerSocket listenSock = new ServerSocket(port, 0, bindAdr);
+		Storage storage;
+		if (follow != null) {
+			String name = storageName;
+			int n = shards;
+			if (memoryStorage(name, n) == null || replicate > 0) {
+				System.err.println("a follower keeps its pairs in memory " +
+						"and does not replicate them");
+				System.exit(1);
+				return;
+			}
+			ReplicaStorage replica =
+					new ReplicaStorage(() -> memoryStorage(name, n));
+			int colon = follow.lastIndexOf(':');
+			ReplicationFollower follower = new ReplicationFollower(
+					follow.substring(0, colon),
+					Integer.parseInt(follow.substring(colon + 1)), replica);
+			Thread following = new Thread(follower, "ReplicationFollower");
+			following.setDaemon(true);
+			following.start();
+			register(follower, "ReplicationFollower", port);
+			storage = replica;
+		} else if (storageName.equals("lsm")) {
+			LsmStorage lsm = new LsmStorage(new File(dir), memtable, batch,
+					linger);
+			register(lsm.committer(), "GroupCommitter", port);
+			storage = lsm;
+		} else {
+			storage = memoryStorage(storageName, shards);
+			if (storage == null) {
+				System.err.println("unknown storage " + storageName);
+				System.exit(1);
+				return;
+			}
+		}
+		if (replicate > 0) {
+			ReplicationLeader leader = new ReplicationLeader(storage,
+					replBacklog);
+			leader.listen(new ServerSocket(replicate, 50, bindAdr));
+			register(leader, "ReplicationLeader", port);
+			storage = new ReplicatedStorage(storage, leader);
+		}
+		TcpMapConnections limits = new TcpMapConnections(idle * 1000, maxOut);
+		register(limits, "Connections", port);
+		// the backlog holds the clients waiting for a free session
+		int backlog = Math.max(50, maxConns);
 
-		HashMap <String, String> storage = new HashMap<>();
+		if (engine.equals("nio")) {
+			ServerSocketChannel listenChannel = ServerSocketChannel.open();
+			listenChannel.bind(new InetSocketAddress(bindAdr, port), backlog);
+			serveNio(listenChannel, storage, limits, maxConns, loops);
+			return;
+		}
 
-		while (true) {
-			// wait for incoming connection request and create new socket to handle it
-			Socket connSock = listenSock.accept();
-	
-			// create buffered versions of socket's in/out streams
-			BufferedInputStream   in = new BufferedInputStream(
-						   connSock.getInputStream());
-			BufferedOutputStream out = new BufferedOutputStream(
-						   connSock.getOutputStream());
+		// create and bind listening socket
+		ServerSocket listenSock = new ServerSocket(port, backlog, bindAdr);
 
+		if (engine.equals("serial")) {
 			while (true) {
-				// Receiving a new packet (request) from client
-				byte[] buf = new byte[1024];
-
-				// init buf array to get the command from client
-				int nbytes = in.read(buf, 0, buf.length);
-				if (nbytes < 0) break;
-
-				// Processing the client's request, and constructing an answer
-				String clientRequest = new String(buf, 0, buf.length, "US-ASCII");
-				String[] processedRequest = clientRequest.split(":");
-				String answerToClient = "";
-				if (!checkInput(processedRequest)) {
-					answerToClient = "Error:unrecognizable input:" + clientRequest;
-				} else {
+				// wait for incoming connection request and serve it until
+				// the client disconnects
+				new TcpMapSession(listenSock.accept(), storage, limits).run();
+			}
+		} else if (engine.equals("threads")) {
+			serveThreads(listenSock, storage, limits, maxConns);
+		} else {
+			System.err.println("unknown engine " + engine);
+			System.exit(1);
+		}
+	}
 
-					// The input is valid, constructing an answer which
-					// corresponds to the defined specifications
-					String res;
-					String clientKey = "";
-					if (processedRequest.length > 1) {
-						clientKey = processedRequest[1].trim();
-					}
-					String commandTrimed = processedRequest[0].trim();
-					switch (commandTrimed) {
-						case "get":
-							answerToClient =
-									(storage.containsKey(clientKey)) ?
-											"ok:" + storage.get(clientKey) :
-											"no match";
-							break;
-						case "remove":
-							answerToClient =
-									(storage.containsKey(clientKey))?
-											"Ok" : "no match";
-							storage.remove(clientKey);
-							break;
-						case "put":
-							String clientValue = processedRequest[2].trim();
-							res = storage.put(clientKey, clientValue);
-							answerToClient = (res == null) ? "Ok" :
-									"updated:" + clientKey;
-							break;
-						case "get all":
-							for (Map.Entry<String, String> entry : storage.entrySet()){
-								answerToClient += entry.getKey() + ":" + entry.getValue() + "::";
-							}
-							answerToClient = answerToClient.substring(0, answerToClient.length() - 2);
-							break;
-					}
-					answerToClient = answerToClient.trim();
-					answerToClient += "\n";
+	/**
+	 * Serve every connection in a thread of its own, at most maxConns at
+	 * a time. A connection is only accepted once a session is free.
+	 */
+	private static void serveThreads(ServerSocket listenSock,
+			Storage storage, TcpMapConnections limits, int maxConns)
+			throws IOException, InterruptedException {
+		Semaphore sessions = new Semaphore(maxConns);
+		// a finished session gives its permit back just before its thread
+		// is free again, so a new session may have to queue for a moment
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConns, maxConns,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(null, r, "TcpMapSession",
+							STACK_SIZE);
+					t.setDaemon(true);
+					return t;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		while (true) {
+			sessions.acquire();
+			Socket connSock = listenSock.accept();
+			TcpMapSession session = new TcpMapSession(connSock, storage,
+					limits);
+			pool.execute(() -> {
+				try {
+					session.run();
+				} finally {
+					sessions.release();
 				}
-				buf = answerToClient.getBytes("US-ASCII");
-				out.write(buf, 0, buf.length);
-				out.flush();
-			}
-			// close connections and readers
-			connSock.close();
-			in.close();
-			out.close();
+			});
 		}
 	}
 
 	/**
-	 * Checks if the client's request complies with the specifications
-	 * @param command The different parts of the requested query
-	 * @return Whether the request should be processed or not
+	 * Serve the connections from n event loops, the first of which also
+	 * accepts them, with at most maxConns connections open at a time.
 	 */
-	private static boolean checkInput(String[] command) {
-		String temp = command[0].trim();
-		if (temp.equals("get all") && command.length == 1) {
-			return true;
-		} else if ((!command[0].equals("get") && !command[0].equals("put")
-				&& !command[0].equals("remove")) || command.length > 3)
-			return false;
-		else if (command[0].equals("get") || command[0].equals("remove"))
-			return command.length <= 2;
-		return command.length == 3;
+	private static void serveNio(ServerSocketChannel listenChannel,
+			Storage storage, TcpMapConnections limits, int maxConns, int n)
+			throws IOException, InterruptedException {
+		TcpMapLoop[] loops = new TcpMapLoop[Math.max(1, n)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new TcpMapLoop(storage, limits);
+		}
+		loops[0].accept(listenChannel, loops, new Semaphore(maxConns));
+		Thread[] threads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++) {
+			threads[i] = new Thread(loops[i], "TcpMapLoop-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+	}
+
+	/** @return a new storage kept in memory, or null if there is no such */
+	private static Storage memoryStorage(String name, int shards) {
+		if (name.equals("hash")) {
+			return new HashStorage();
+		} else if (name.equals("sorted")) {
+			return new SortedStorage();
+		} else if (name.equals("sharded")) {
+			return new ShardedStorage(shards);
+		}
+		return null;
+	}
+
+	/** Register an MBean as TcpMapServer:type=<type>,port=<port>. */
+	private static void register(Object mbean, String type, int port) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					new ObjectName("TcpMapServer:type=" + type + ",port=" +
+					port));
+		} catch (JMException e) {
+			System.err.println("TcpMapServer: no JMX " + type + ": " + e);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,247 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One connection of TcpMapServer. Reads requests from the socket and
+ * answers each of them with one line, until the client disconnects.
+ * The storage is shared by all sessions, so it must be thread-safe.
+ *
+ * Requests are split on newlines by a TcpMapFramer. All the requests
+ * that came in one read are answered before the answers are flushed
+ * together, so a client that pipelines requests gets them back in as
+ * few segments as possible. The answer to get all and get range:<prefix>
+ * is streamed through the buffered socket stream by a TcpMapDump, as
+ * are the answers to scan:<from>:<to>:<limit> and prefix:<p>.
+ *
+ * The answers to the requests of one read are held back until the
+ * updates among them are durable, see Storage.awaitDurable.
+ *
+ * A client that starts with TcpMapBinary.MAGIC speaks the binary protocol
+ * instead, its requests are split into frames by the same framer.
+ *
+ * The session is closed if the client sends nothing, or takes no answer
+ * bytes, for the idle time of TcpMapConnections. While a write is stuck
+ * no requests are read, so a client that does not read its answers holds
+ * up only itself.
+ **/
+
+public class TcpMapSession implements Runnable {
+	//bytes of a dump written at a time
+	private static final int DUMP_CHUNK = 64 << 10;
+
+	private final Socket connSock;
+	private final Storage storage;
+	private final TcpMapConnections connections;
+	private volatile long writingSince;     // start of a write, or 0
+	private volatile boolean writeTimedOut;
+	private long pauses;                    // writes that waited
+
+	public TcpMapSession(Socket connSock, Storage storage,
+			TcpMapConnections connections) {
+		this.connSock = connSock;
+		this.storage = storage;
+		this.connections = connections;
+	}
+
+	public void run() {
+		connections.opened();
+		connections.watch(this);
+		try {
+			connSock.setSoTimeout((int) connections.idleMillis);
+			// create buffered versions of socket's in/out streams
+			BufferedInputStream   in = new BufferedInputStream(
+						   connSock.getInputStream());
+			BufferedOutputStream out = new BufferedOutputStream(
+						   new WatchedStream(connSock.getOutputStream()));
+
+			TcpMapFramer framer = new TcpMapFramer();
+			boolean negotiated = false, binary = false;
+			while (true) {
+				// Receiving new requests from client
+				if (framer.read(in) < 0) break;
+
+				// the first byte tells which protocol the client speaks
+				if (!negotiated) {
+					negotiated = true;
+					binary = framer.peek() == TcpMapBinary.MAGIC;
+					if (binary) {
+						framer.skip();
+						out.write(TcpMapBinary.MAGIC);
+					}
+				}
+
+				// Processing the client's requests, and constructing answers
+				TcpMapDump dump;
+				while (true) {
+					if (binary) {
+						ByteBuffer frame = framer.nextFrame();
+						if (frame == null) break;
+						dump = TcpMapBinary.process(frame, storage, out);
+					} else {
+						String clientRequest = framer.next();
+						if (clientRequest == null) break;
+						dump = process(clientRequest, storage, out);
+					}
+					if (dump != null) {
+						while (!dump.writeTo(out, DUMP_CHUNK));
+					}
+				}
+				// answers to updates go out once the updates are durable
+				storage.awaitDurable(storage.lastUpdate());
+				out.flush();
+			}
+		} catch (SocketTimeoutException e) {
+			// nothing came for idleMillis
+			connections.idleTimeout();
+		} catch (IOException e) {
+			// the watchdog closing the socket is no news
+			if (!writeTimedOut) System.err.println("TcpMapSession: " + e);
+		} finally {
+			connections.unwatch(this);
+			connections.closed();
+			// close connections and readers
+			try {
+				connSock.close();
+			} catch (IOException e) {
+				// nothing left to do with this connection
+			}
+		}
+	}
+
+	/**
+	 * Close the socket if a write has been stuck for longer than limit, as
+	 * the watchdog of TcpMapConnections finds at now.
+	 * @return true if the socket was closed
+	 */
+	boolean abortStuckWrite(long now, long limit) {
+		long since = writingSince;
+		if (since == 0 || now - since <= limit) return false;
+		writeTimedOut = true;
+		try {
+			connSock.close();
+		} catch (IOException e) {
+			// the write fails either way
+		}
+		return true;
+	}
+
+	/** The socket stream, telling the watchdog when a write is going on. */
+	private class WatchedStream extends FilterOutputStream {
+		WatchedStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			writingSince = start;
+			try {
+				out.write(b, off, len);
+			} finally {
+				writingSince = 0;
+				// the client did not take the answers as fast as they came
+				if (System.nanoTime() - start >=
+						TcpMapConnections.PAUSE_NANOS) {
+					connections.paused(pauses++);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Execute one request against the storage, for any engine, and write
+	 * its answer, ending with a newline, to out.
+	 * @param clientRequest is the request as received
+	 * @return for get all, get range, scan and prefix, the dump the caller
+	 * has to write as the answer instead; null otherwise
+	 */
+	static TcpMapDump process(String clientRequest, Storage storage,
+			OutputStream out) throws IOException {
+		String[] processedRequest = clientRequest.split(":");
+		String answerToClient = "";
+		if (!checkInput(processedRequest)) {
+			answer(out, "Error:unrecognizable input:" + clientRequest);
+			return null;
+		}
+
+		// The input is valid, constructing an answer which
+		// corresponds to the defined specifications
+		String res;
+		String clientKey = "";
+		if (processedRequest.length > 1) {
+			clientKey = processedRequest[1].trim();
+		}
+		String commandTrimed = processedRequest[0].trim();
+		if (storage.readOnly() && (commandTrimed.equals("put") ||
+				commandTrimed.equals("remove"))) {
+			answer(out, "Error:read only:" + clientRequest);
+			return null;
+		}
+		switch (commandTrimed) {
+			case "get":
+				res = storage.get(clientKey);
+				answerToClient = (res != null) ? "ok:" + res : "no match";
+				break;
+			case "remove":
+				answerToClient =
+						(storage.remove(clientKey) != null) ? "Ok" : "no match";
+				break;
+			case "put":
+				String clientValue = processedRequest[2].trim();
+				res = storage.put(clientKey, clientValue);
+				answerToClient = (res == null) ? "Ok" :
+						"updated:" + clientKey;
+				break;
+			case "get all":
+				return new TcpMapDump(storage.all(), Long.MAX_VALUE);
+			case "get range":
+			case "prefix":
+				return new TcpMapDump(storage.prefix(clientKey), Long.MAX_VALUE);
+			case "scan":
+				// scan:from:to:limit, an empty to or limit means no bound
+				String to = processedRequest[2].trim();
+				String limit = processedRequest[3].trim();
+				try {
+					return new TcpMapDump(storage.scan(clientKey,
+							to.isEmpty() ? null : to), limit.isEmpty() ?
+							Long.MAX_VALUE : Long.parseLong(limit));
+				} catch (NumberFormatException e) {
+					answer(out, "Error:bad limit:" + limit + "\n");
+					return null;
+				}
+		}
+		answerToClient = answerToClient.trim();
+		answerToClient += "\n";
+		answer(out, answerToClient);
+		return null;
+	}
+
+	private static void answer(OutputStream out, String answer)
+			throws IOException {
+		out.write(answer.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Checks if the client's request complies with the specifications
+	 * @param command The different parts of the requested query
+	 * @return Whether the request should be processed or not
+	 */
+	private static boolean checkInput(String[] command) {
+		String temp = command[0].trim();
+		if (temp.equals("get all") && command.length == 1) {
+			return true;
+		} else if (command[0].equals("scan"))
+			return command.length == 4;
+		else if ((!command[0].equals("get") && !command[0].equals("put")
+				&& !command[0].equals("remove")
+				&& !command[0].equals("get range")
+				&& !command[0].equals("prefix")) || command.length > 3)
+			return false;
+		else if (command[0].equals("get range") || command[0].equals("prefix"))
+			return command.length == 2;
+		else if (command[0].equals("get") || command[0].equals("remove"))
+			return command.length <= 2;
+		return command.length == 3;
+	}
+}